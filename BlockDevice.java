@@ -0,0 +1,12 @@
+//What the kernel needs from whatever stores the blocks behind SysLib.rawread/rawwrite/sync. The simulated Disk
+//is reached through its DiskScheduler; a real disk image file is served by MappedBlockDevice.
+public interface BlockDevice {
+    //Copies block blockId into buffer, false if the block does not exist
+    boolean read(int blockId, byte[] buffer);
+
+    //Copies buffer into block blockId, false if the block does not exist
+    boolean write(int blockId, byte[] buffer);
+
+    //Returns once every block written so far is durable
+    boolean sync();
+}
@@ -0,0 +1,389 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//Write-back disk block cache that sits between the file system and SysLib.rawread/rawwrite.
+//Blocks are kept in a fixed number of frames; writes only dirty the frame and reach the disk when the frame is
+//evicted or when sync()/flush() is called. Which frame gets evicted is decided by a pluggable EvictionPolicy.
+//No disk transfer happens under the cache monitor: a miss takes its frame and marks it busy under the monitor, reads
+//the block (and first writes back the dirty block the frame held) outside it, and uses the frame under the monitor
+//again. Threads that want a busy frame's old or new block wait for it, every other hit goes ahead meanwhile.
+public class Cache {
+    private final int blockSize;       //size of one disk block in bytes
+    private final byte[][] frames;     //the cached block contents, one array per frame
+    private final int[] frameBlock;    //disk block held by each frame, -1 when the frame is free
+    private final boolean[] dirty;     //true if the frame differs from what is on disk
+    private int[] blockFrame;          //reverse index from disk block number to frame, -1 when not cached
+    private int usedFrames;            //number of frames that have ever been filled
+    private final EvictionPolicy policy;
+    private final boolean[] prefetched; //true while a frame filled by prefetch() has not been asked for yet
+    private final boolean[] busy;      //a transfer is in flight on the frame, only the thread doing it touches it
+    private final boolean[] loading;   //the busy frame's new block is being read in
+    private final int[] evicting;      //dirty block the busy frame is writing back first, -1 if none; it stays
+                                       //mapped to the frame until written, so nobody reads its stale disk copy
+    private int transfers;             //busy frames, sync and flush wait for them
+    private long writeBacks;           //blocks written to disk so far, lets prefetch() spot a write it raced with
+    private long prefetchIssued;       //blocks brought in by prefetch()
+    private long prefetchHits;         //prefetched blocks a reader asked for before they were evicted
+    private long prefetchWastes;       //prefetched blocks evicted or flushed without ever being asked for
+    private long hits;                 //reads and writes that found their block cached
+    private long misses;               //reads and writes that had to take a frame for their block
+
+    //Default constructor kept for the kernel boot sequence, uses enhanced second-chance eviction
+    public Cache(int blockSize, int cacheBlocks) {
+        this(blockSize, cacheBlocks, new SecondChancePolicy());
+    }
+
+    public Cache(int blockSize, int cacheBlocks, EvictionPolicy policy) {
+        this.blockSize = blockSize;
+        this.policy = policy;
+        frames = new byte[cacheBlocks][blockSize];
+        frameBlock = new int[cacheBlocks];
+        dirty = new boolean[cacheBlocks];
+        prefetched = new boolean[cacheBlocks];
+        busy = new boolean[cacheBlocks];
+        loading = new boolean[cacheBlocks];
+        evicting = new int[cacheBlocks];
+        for (int i = 0; i < cacheBlocks; i++) {
+            frameBlock[i] = -1; //every frame starts out free
+            evicting[i] = -1;
+        }
+        blockFrame = new int[0];
+        usedFrames = 0;
+        policy.reset(cacheBlocks);
+    }
+
+    //Copies the block into buffer, reading it from disk only on a miss
+    public boolean read(int blockId, byte[] buffer) {
+        if (blockId < 0) {
+            return false;
+        }
+        int frame;
+        synchronized (this) {
+            frame = claim(blockId, true);
+            if (frame >= 0) {
+                copyOut(frame, buffer);
+                return true;
+            }
+        }
+        frame = transfer(~frame, blockId); //miss, bring the block in from disk
+        synchronized (this) {
+            release(frame);
+            copyOut(frame, buffer);
+            return true;
+        }
+    }
+
+    //Copies buffer into the cached block and marks it dirty, a full block write never needs the old contents
+    public boolean write(int blockId, byte[] buffer) {
+        if (blockId < 0) {
+            return false;
+        }
+        int frame;
+        synchronized (this) {
+            frame = claim(blockId, false);
+            if (frame >= 0) {
+                copyIn(frame, buffer);
+                return true;
+            }
+        }
+        frame = transfer(~frame, blockId); //only the frame's previous block has to be written back
+        synchronized (this) {
+            release(frame);
+            copyIn(frame, buffer);
+            return true;
+        }
+    }
+
+    //Copies length bytes starting at offset within the block straight from the cached frame into dst, so a
+    //ByteBuffer reader (heap or direct) never goes through an intermediate block-sized array
+    public boolean read(int blockId, int offset, ByteBuffer dst, int length) {
+        if (blockId < 0) {
+            return false;
+        }
+        int frame;
+        synchronized (this) {
+            frame = claim(blockId, true);
+            if (frame >= 0) {
+                copyOut(frame, offset, dst, length);
+                return true;
+            }
+        }
+        frame = transfer(~frame, blockId); //miss, bring the block in from disk
+        synchronized (this) {
+            release(frame);
+            copyOut(frame, offset, dst, length);
+            return true;
+        }
+    }
+
+    //Copies length bytes from src into the cached block at offset and marks it dirty. The old contents are only
+    //read from disk when part of them survives; a fresh block (just allocated to the file) is started from zeros
+    public boolean write(int blockId, int offset, ByteBuffer src, int length, boolean fresh) {
+        if (blockId < 0) {
+            return false;
+        }
+        boolean partial = length < blockSize;
+        int frame;
+        synchronized (this) {
+            frame = claim(blockId, partial && !fresh);
+            if (frame >= 0) {
+                copyIn(frame, offset, src, length, partial && fresh);
+                return true;
+            }
+        }
+        frame = transfer(~frame, blockId);
+        synchronized (this) {
+            release(frame);
+            copyIn(frame, offset, src, length, partial && fresh);
+            return true;
+        }
+    }
+
+    //Brings blockId into the cache ahead of a reader, using buffer (one block) as the landing area. The disk read
+    //happens outside the cache monitor so foreground hits never wait behind read-ahead; if the block got cached,
+    //or anything was written back, while the read was in flight, the possibly stale copy is thrown away. Read-ahead
+    //never waits for a busy frame, it gives up instead. Returns true if the block was installed
+    public boolean prefetch(int blockId, byte[] buffer) {
+        long seen;
+        synchronized (this) {
+            if (blockId < 0 || lookup(blockId) >= 0) {
+                return false; //already cached, nothing to do
+            }
+            seen = writeBacks;
+        }
+        SysLib.rawread(blockId, buffer);
+        int frame;
+        synchronized (this) {
+            if (lookup(blockId) >= 0 || writeBacks != seen) {
+                return false;
+            }
+            frame = takeFrame();
+            if (frame < 0) {
+                return false;
+            }
+            frame = install(frame, blockId, false);
+            if (frame >= 0) {
+                prefetched(frame, buffer);
+                return true;
+            }
+        }
+        frame = transfer(~frame, blockId); //the victim was dirty, write it back first
+        synchronized (this) {
+            release(frame);
+            prefetched(frame, buffer);
+            return true;
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long prefetchIssued() {
+        return prefetchIssued;
+    }
+
+    public synchronized long prefetchHits() {
+        return prefetchHits;
+    }
+
+    public synchronized long prefetchWastes() {
+        return prefetchWastes;
+    }
+
+    //Writes every dirty block back to disk but keeps them cached
+    public synchronized void sync() {
+        awaitTransfers(); //a victim being written back is no longer marked dirty, but is not on disk yet
+        writeBackDirty();
+    }
+
+    //Writes every dirty block back to disk and then empties the cache
+    public synchronized void flush() {
+        awaitTransfers();
+        writeBackDirty();
+        for (int i = 0; i < frames.length; i++) {
+            if (frameBlock[i] >= 0) {
+                blockFrame[frameBlock[i]] = -1;
+            }
+            if (prefetched[i]) { //dropped before anyone read it
+                prefetched[i] = false;
+                prefetchWastes++;
+            }
+            frameBlock[i] = -1;
+        }
+        usedFrames = 0;
+        policy.reset(frames.length);
+    }
+
+    //Returns the frame caching blockId, ready to use, for the read and write paths; these are the accesses counted
+    //in hits() and misses(). A block with a transfer in flight is waited for. On a miss a frame is taken for the
+    //block and ~frame returned: the frame is busy, and the caller calls transfer() on it outside the monitor, then
+    //release() under it before using the frame. load tells whether the block's old contents have to be read
+    private int claim(int blockId, boolean load) {
+        while (true) {
+            int frame = lookup(blockId);
+            if (frame >= 0 && !busy[frame]) {
+                hits++;
+                return frame;
+            }
+            if (frame < 0) {
+                frame = takeFrame();
+                if (frame >= 0) {
+                    misses++;
+                    return install(frame, blockId, load);
+                }
+            }
+            awaitTransfer(); //the block, or the frame picked to give up, is mid transfer; look again after it
+        }
+    }
+
+    //Returns the frame caching blockId or -1 on a miss
+    private int lookup(int blockId) {
+        return (blockId < blockFrame.length) ? blockFrame[blockId] : -1;
+    }
+
+    //Picks a frame to hold a new block: a never used one while there are any, else the policy's victim. -1 if the
+    //victim is busy, the caller waits or gives up
+    private int takeFrame() {
+        if (usedFrames < frames.length) { //free frames are handed out in order until the cache is full
+            return usedFrames++;
+        }
+        int frame = policy.victim(dirty);
+        return busy[frame] ? -1 : frame;
+    }
+
+    //Gives frame to blockId. If the frame's previous block is dirty, or the new block has to be read (load), the
+    //frame is marked busy for the caller's transfer and ~frame returned, otherwise frame, ready to use
+    private int install(int frame, int blockId, boolean load) {
+        int old = frameBlock[frame];
+        if (prefetched[frame]) { //evicted before anyone read it
+            prefetched[frame] = false;
+            prefetchWastes++;
+        }
+        boolean writeBack = old >= 0 && dirty[frame];
+        if (writeBack) {
+            dirty[frame] = false; //on its way to disk
+            writeBacks++;
+            evicting[frame] = old;
+        } else if (old >= 0) {
+            blockFrame[old] = -1;
+        }
+        if (blockId >= blockFrame.length) { //grow the reverse index to cover the new block number
+            int[] grown = new int[Math.max(blockId + 1, blockFrame.length * 2)];
+            System.arraycopy(blockFrame, 0, grown, 0, blockFrame.length);
+            for (int i = blockFrame.length; i < grown.length; i++) {
+                grown[i] = -1;
+            }
+            blockFrame = grown;
+        }
+        frameBlock[frame] = blockId;
+        blockFrame[blockId] = frame;
+        policy.access(frame); //freshly loaded, and a busy frame makes a poor victim
+        if (!writeBack && !load) {
+            return frame;
+        }
+        busy[frame] = true;
+        loading[frame] = load;
+        transfers++;
+        return ~frame;
+    }
+
+    //The disk I/O of a busy frame, run outside the monitor by the thread that claimed it: writes back the block
+    //being evicted, then reads blockId in if asked to. Returns the frame
+    private int transfer(int frame, int blockId) {
+        if (evicting[frame] >= 0) {
+            SysLib.rawwrite(evicting[frame], frames[frame]);
+        }
+        if (loading[frame]) {
+            SysLib.rawread(blockId, frames[frame]);
+        }
+        return frame;
+    }
+
+    //Ends a transfer, under the monitor: the evicted block stops pointing at the frame, and waiters look again
+    private void release(int frame) {
+        int old = evicting[frame];
+        if (old >= 0 && blockFrame[old] == frame) {
+            blockFrame[old] = -1;
+        }
+        evicting[frame] = -1;
+        busy[frame] = false;
+        transfers--;
+        notifyAll();
+    }
+
+    private void awaitTransfer() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            //look again, the caller's loop decides whether to keep waiting
+        }
+    }
+
+    private void awaitTransfers() {
+        while (transfers > 0) {
+            awaitTransfer();
+        }
+    }
+
+    private void copyOut(int frame, byte[] buffer) {
+        System.arraycopy(frames[frame], 0, buffer, 0, blockSize);
+        countPrefetchHit(frame);
+        policy.access(frame);
+    }
+
+    private void copyOut(int frame, int offset, ByteBuffer dst, int length) {
+        dst.put(frames[frame], offset, length);
+        countPrefetchHit(frame);
+        policy.access(frame);
+    }
+
+    private void copyIn(int frame, byte[] buffer) {
+        System.arraycopy(buffer, 0, frames[frame], 0, blockSize);
+        prefetched[frame] = false; //overwritten before anyone read it, neither a hit nor a waste
+        dirty[frame] = true;
+        policy.access(frame);
+    }
+
+    //zero: whatever the frame or the disk held belonged to a previous owner of the block
+    private void copyIn(int frame, int offset, ByteBuffer src, int length, boolean zero) {
+        if (zero) {
+            Arrays.fill(frames[frame], (byte)0);
+        }
+        src.get(frames[frame], offset, length);
+        prefetched[frame] = false;
+        dirty[frame] = true;
+        policy.access(frame);
+    }
+
+    private void prefetched(int frame, byte[] buffer) {
+        System.arraycopy(buffer, 0, frames[frame], 0, blockSize);
+        prefetched[frame] = true;
+        prefetchIssued++;
+        policy.access(frame); //give the block a chance to survive until the reader gets to it
+    }
+
+    //Writes the dirty frames back in block order so neighbouring blocks reach the disk one after another
+    private void writeBackDirty() {
+        for (int blockId = 0; blockId < blockFrame.length; blockId++) {
+            int frame = blockFrame[blockId];
+            if (frame >= 0 && dirty[frame]) {
+                SysLib.rawwrite(blockId, frames[frame]);
+                dirty[frame] = false;
+                writeBacks++;
+            }
+        }
+    }
+
+    //Counts a prefetched frame as a hit the first time a reader asks for it
+    private void countPrefetchHit(int frame) {
+        if (prefetched[frame]) {
+            prefetched[frame] = false;
+            prefetchHits++;
+        }
+    }
+}
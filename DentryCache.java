@@ -0,0 +1,80 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//Recently resolved path components, keyed by the parent directory's iNumber and the component's name. Names known
+//not to exist are cached too, as NEGATIVE, so looking up a missing file again does not search its directory again.
+//The cache holds at most capacity entries and drops the least recently used first. It never reads directories
+//itself: whoever changes a directory updates the affected entries through put and forget.
+public class DentryCache {
+    public final static short NEGATIVE = -1;  //the name is known not to exist in the parent
+    public final static short UNKNOWN = -2;   //not cached, the parent has to be searched
+
+    private final LinkedHashMap<Key, Short> entries;
+    private long hits;
+    private long misses;
+
+    public DentryCache(final int capacity) {
+        entries = new LinkedHashMap<Key, Short>(16, 0.75f, true) { //access order, eldest is least recently used
+            protected boolean removeEldestEntry(Map.Entry<Key, Short> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    //Returns the iNumber cached for name in parent, NEGATIVE, or UNKNOWN
+    public synchronized short get(short parent, String name) {
+        Short iNumber = entries.get(new Key(parent, name));
+        if (iNumber == null) {
+            misses++;
+            return UNKNOWN;
+        }
+        hits++;
+        return iNumber;
+    }
+
+    //Records what name in parent resolves to, NEGATIVE if it does not exist
+    public synchronized void put(short parent, String name, short iNumber) {
+        entries.put(new Key(parent, name), iNumber);
+    }
+
+    //Drops every entry inside parent, used when the directory itself is removed and its iNumber may be reused
+    public synchronized void forget(short parent) {
+        Iterator<Key> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().parent == parent) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    private static final class Key {
+        final short parent;
+        final String name;
+
+        Key(short parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        public int hashCode() {
+            return parent * 31 + name.hashCode();
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return parent == other.parent && name.equals(other.name);
+        }
+    }
+}
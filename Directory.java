@@ -1,3 +1,6 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
 public class Directory {
     private static int maxChars = 30; // max characters of each file name
 
@@ -7,6 +10,31 @@ public class Directory {
     private static final int FILE_NAME_MAX_NUMBER_OF_BYTES = 60;
     private final static int BYTES_IN_AN_INTEGER = 4;
 
+    // In-memory indexes kept alongside fsizes/fnames, never written to disk
+    private int hashSlots[];     // open-addressing table of iNumbers keyed by file name
+    private long freeSlots[];    // bit i is set while directory entry i is free
+    private int deletedSlots;    // DELETED markers in hashSlots, the index is rebuilt before they crowd out EMPTY ones
+    private static final int EMPTY = -1;     // hash slot never used
+    private static final int DELETED = -2;   // hash slot whose file was freed, lookups keep probing past it
+
+    // On-disk image of the directory file, patched slot by slot so sync only rewrites the blocks that changed
+    private byte image[];
+    private boolean dirtyBlocks[];           // one flag per 512-byte block of image
+    private static final int BLOCK_SIZE = 512;
+
+    // Entries of files in subdirectories only reserve their iNumber here, under a name starting with HIDDEN that no
+    // lookup can ask for. They are left out of the hash index and of list(), their real names live in the parent
+    public static final String HIDDEN = "/";
+
+    // Paged loading. A directory attached to its file on disk only reads the blocks holding fsizes up front, the
+    // blocks holding names are read and decoded the first time an entry in them is needed
+    private boolean loadedBlocks[];          // blocks of image that hold what is on disk
+    private boolean loadedNames[];           // entries whose fnames and hash slot are filled in
+    private int unloadedNames;               // entries still waiting in loadedNames
+    private boolean indexedLengths[];        // name lengths whose every entry is in the hash index, by length
+    private Inode file;                      // the directory file's inode, only while names are still on disk
+    private Journal journal;                 // reads the directory blocks, staged metadata first
+
     public Directory( int maxInumber ) { // directory constructor
         fsizes = new int[maxInumber];     // maxInumber = max files
         for ( int i = 0; i < maxInumber; i++ )
@@ -15,9 +43,24 @@ public class Directory {
         String root = "/";                // entry(inode) 0 is "/"
         fsizes[0] = root.length( );        // fsize[0] is the size of "/".
         root.getChars( 0, fsizes[0], fnames[0], 0 ); // fnames[0] includes "/"
+        int capacity = 1;                 // hash table at least twice the entry count, power of two for masking
+        while ( capacity < maxInumber * 2 )
+            capacity <<= 1;
+        hashSlots = new int[capacity];
+        freeSlots = new long[( maxInumber + 63 ) / 64];
+        loadedNames = new boolean[maxInumber];
+        Arrays.fill( loadedNames, true );  // nothing on disk yet, every entry is already in memory
+        indexedLengths = new boolean[maxChars + 1];
+        Arrays.fill( indexedLengths, true );
+        rebuildIndex( );
+        image = new byte[( BYTES_IN_AN_INTEGER + FILE_NAME_MAX_NUMBER_OF_BYTES ) * maxInumber];
+        dirtyBlocks = new boolean[( image.length + BLOCK_SIZE - 1 ) / BLOCK_SIZE];
+        loadedBlocks = new boolean[dirtyBlocks.length];
+        Arrays.fill( loadedBlocks, true );
+        directory2bytes( );               // a brand new directory has never been written, every block is dirty
     }
 
-    public int bytes2directory( byte data[] ) {
+    public synchronized int bytes2directory( byte data[] ) {
         // assumes data[] received directory information from disk
         // initializes the Directory instance with this data[]
 
@@ -34,18 +77,64 @@ public class Directory {
             fileName.getChars(0, fsizes[i], fnames[i], 0);              //Store the file name into the char array fnames
             offset += (FILE_NAME_MAX_NUMBER_OF_BYTES);   //Increment the offset by 60 because each character is 2 bytes
         }
+        Arrays.fill(loadedNames, true);
+        Arrays.fill(indexedLengths, true);
+        unloadedNames = 0;
+        file = null;
+        rebuildIndex(); //Index the freshly loaded entries so lookups and allocation never scan the table
+        Arrays.fill(loadedBlocks, true);
+        if (data.length == image.length) {
+            System.arraycopy(data, 0, image, 0, image.length); //What was read is exactly what is on disk
+            markClean();
+        } else {
+            directory2bytes(); //Different size on disk, the next sync has to rewrite all of it
+        }
         return 1; //WHY DO WE RETURN 1 HERE I DO NOT ACTUALLY KNOW PLEASE HELP ME
     }
 
-    public byte[] directory2bytes( ) {
+    //Mounts the directory from its file without reading all of it: only the blocks holding fsizes are read now,
+    //which is enough to know which entries are free. Names are decoded a block at a time as lookups reach them.
+    //inode must be the directory file, exactly imageSize() bytes long. Returns false, having changed nothing, if
+    //some block of the file is not mapped, the caller then reads the whole file and uses bytes2directory
+    public synchronized boolean attach(Inode inode, Journal journal) {
+        for (int b = 0; b < loadedBlocks.length; b++) {
+            if (inode.findTargetBlock(b * BLOCK_SIZE) < 0) {
+                return false;
+            }
+        }
+        file = inode;
+        this.journal = journal;
+        Arrays.fill(loadedBlocks, false);
+        Arrays.fill(loadedNames, false);
+        Arrays.fill(indexedLengths, false);
+        unloadedNames = loadedNames.length;
+        for (int i = 0; i < fsizes.length; i++) {
+            int offset = i * BYTES_IN_AN_INTEGER;
+            loadBlock(offset / BLOCK_SIZE);
+            fsizes[i] = SysLib.bytes2int(image, offset);
+        }
+        rebuildIndex(); //the free-slot bitset is complete, the hash index only has what is loaded, nothing yet
+        markClean();
+        return true;
+    }
+
+    //Number of entries whose names have not been read from disk yet
+    public synchronized int unloadedEntries() {
+        return unloadedNames;
+    }
+
+    public synchronized byte[] directory2bytes( ) {
         // converts and return Directory information into a plain byte array
         // this byte array will be written back to disk
         // note: only meaningfull directory information should be converted
         // into bytes.
 
-        //Initialize a byte array to convert the meaningful file data frmo the directory into
-        //The size is determined by the total bytes in fsizes plus the total byte in fnames to accomodate for them amount of meaningful information
-        byte[] fromDirectory = new byte[(BYTES_IN_AN_INTEGER * fsizes.length) + (FILE_NAME_MAX_NUMBER_OF_BYTES * fnames.length)];
+        //Rebuild the directory image from scratch, its size is the total bytes in fsizes plus the total byte in
+        //fnames to accomodate for them amount of meaningful information
+        loadAllNames();     //Every name has to be in memory before the image is rebuilt from them
+        byte[] fromDirectory = image;
+        Arrays.fill(fromDirectory, (byte)0);
+        Arrays.fill(dirtyBlocks, true);
 
         int offset = 0; //Initialize the offset to start at the beginning
         //Loops through fsizes converting all of the integers into bytes and storing them in the new byte array
@@ -67,7 +156,7 @@ public class Directory {
 
     //Looks for a index where the file size is 0 and allocates appropriate file information there for the iNode number
     //that will be allocated for the file with the given name, and returns the index
-    public short ialloc( String filename ) {
+    public synchronized short ialloc( String filename ) {
         // filename is the one of a file to be created.
         // allocates a new inode number for this filename
         short index = findFreeIndex();  //get the first free index, one that contains a size of 0 in fsizes
@@ -75,18 +164,22 @@ public class Directory {
         {
             return index;
         }
+        loadName(index);                //The blocks around the entry have to hold what is on disk before it is patched
         //The number of characters in the given file is either the actual amount of characters in the name, or the maxChars if the filename length is too large
         fsizes[index] = (filename.length() < maxChars) ? filename.length() : maxChars;
         filename.getChars(0, fsizes[index], fnames[index], 0);  //Copy the file name up to the number of characters specified above into the same index of fnames, starting from 0
+        freeSlots[index / 64] &= ~(1L << (index % 64));         //The entry is no longer free
+        insertName(index);                                      //Make the (possibly truncated) name findable by namei
+        writeSlot(index);                                       //Patch the entry into the on-disk image
         return index;                                           //Return the iNode number which is the index used to allocate the file details
     }
 
     //Helper method for ialloc
-    //Finds the first free index : where fsizes is 0, and returns the index
+    //Finds the first free index using the free-slot bitset, one word covers 64 entries, and returns the index
     private short findFreeIndex() {
-        for (int i = 1; i < fsizes.length; i++) {  //Don't check index at 0, as that is the directory's information and shouldn't be overwritten
-            if (fsizes[i] == 0) {                   //Return the value of the current index if fsizes is equal to 0
-                return (short)i;
+        for (int w = 0; w < freeSlots.length; w++) {
+            if (freeSlots[w] != 0) {                //Some entry in this word is free
+                return (short)(w * 64 + Long.numberOfTrailingZeros(freeSlots[w]));
             }
         }
         return (short)-1;                           //Return -1 if no free index of fsizes is found
@@ -94,28 +187,211 @@ public class Directory {
 
     //Sets the fsize at the given index to 0 if it is not already 0 and the given index is valid
     //Returns true on success, false otherwise
-    public boolean ifree( short iNumber ) {
+    public synchronized boolean ifree( short iNumber ) {
         // deallocates this inumber (inode number)
         // the corresponding file will be deleted.
-        if (maxChars > iNumber && fsizes[iNumber] > 0){
-            fsizes[iNumber] = 0;    //Deallocate the file if  iNumber is less than maxChars and the size at index iNumber is 0
+        if (iNumber > 0 && iNumber < fsizes.length && fsizes[iNumber] > 0){
+            loadName(iNumber);      //Its name is needed to find its hash slot
+            removeName(iNumber);    //Drop the name from the hash index before its entry disappears
+            fsizes[iNumber] = 0;    //Deallocate the file if iNumber is a valid file entry and the size at index iNumber is not 0
+            freeSlots[iNumber / 64] |= 1L << (iNumber % 64);
+            writeSlot(iNumber);
+            if (deletedSlots > hashSlots.length / 4) {
+                rebuildIndex();     //Too many deleted markers make misses probe far, start the index over
+            }
             return true;
         }
         return false;
     }
 
-    //Loops through the files looking for the index of the file that has the same exact name as the given name
-    //and returns the index of that file if found, otherwise the short value of -1 is returned
-    public short namei( String filename ) {
+    //Looks the name up in the hash index and returns the index of the file with the same exact name if found,
+    //otherwise the short value of -1 is returned. Compares characters in place, so no String is created
+    public synchronized short namei( String filename ) {
         // returns the inumber corresponding to this filename
-        for (int i = 0; i < fsizes.length; i++) {           //Loop through all of fsizes checking to see if the size of a file is equal to the length of the name of the given file
-            if (fsizes[i] == filename.length()) {
-                String nameOfFile = new String(fnames[i], 0, fsizes[i]);    //Get the name of the found file with the same length by copying it from fnames at the found index
-                if (filename.compareTo(nameOfFile) == 0) {                  //If the found name and given name are both the same, return the short value of the index it was found at
+        int mask = hashSlots.length - 1;
+        for (int probe = filename.hashCode() & mask; hashSlots[probe] != EMPTY; probe = (probe + 1) & mask) {
+            int i = hashSlots[probe];
+            if (i >= 0 && sameName(i, filename)) {
+                return (short)i;
+            }
+        }
+        //Not among the loaded names. Every size is in memory, so only the entries whose size is the name's length
+        //are decoded, and only the name blocks they lie in are read. Once none of that length is left on disk the
+        //miss is final and reads nothing. The first miss for a length still reads every name block holding an
+        //entry of that length, all of them in a directory of equally long names, once per mount
+        int length = filename.length();
+        if (length == 0 || length > maxChars || indexedLengths[length]) {
+            return (short)-1;
+        }
+        for (int i = 0; i < fsizes.length; i++) {
+            if (fsizes[i] == length && !loadedNames[i]) {
+                loadName(i);
+                if (sameName(i, filename)) {
                     return (short)i;
                 }
             }
         }
+        indexedLengths[length] = true;
         return (short)-1;   //Return short value -1 if no file with given name is found
     }
-}
\ No newline at end of file
+
+    //Reads entry i's name from the image, reading the blocks it lies in first, and adds it to the hash index
+    private void loadName(int i) {
+        if (loadedNames[i]) {
+            return;
+        }
+        int nameOffset = BYTES_IN_AN_INTEGER * fsizes.length + FILE_NAME_MAX_NUMBER_OF_BYTES * i;
+        loadBlock(nameOffset / BLOCK_SIZE);
+        loadBlock((nameOffset + FILE_NAME_MAX_NUMBER_OF_BYTES - 1) / BLOCK_SIZE);
+        boolean ascii = true;
+        for (int c = 0; c < fsizes[i]; c++) {
+            byte b = image[nameOffset + c];
+            fnames[i][c] = (char)b;  //Names are almost always plain ASCII, one byte per character
+            ascii &= b >= 0;
+        }
+        if (!ascii) {                //Otherwise decode the way bytes2directory does
+            new String(image, nameOffset, FILE_NAME_MAX_NUMBER_OF_BYTES).getChars(0, fsizes[i], fnames[i], 0);
+        }
+        loadedNames[i] = true;
+        unloadedNames--;
+        if (fsizes[i] > 0) {
+            insertName(i);
+        }
+        if (unloadedNames == 0) {
+            Arrays.fill(indexedLengths, true);
+            file = null;             //Nothing left to read
+            journal = null;
+        }
+    }
+
+    private void loadAllNames() {
+        for (int i = 0; unloadedNames > 0 && i < fsizes.length; i++) {
+            loadName(i);
+        }
+    }
+
+    //Reads block b of the directory file into the image unless it is there already
+    private void loadBlock(int b) {
+        if (loadedBlocks[b]) {
+            return;
+        }
+        byte[] block = new byte[BLOCK_SIZE];
+        journal.read(file.findTargetBlock(b * BLOCK_SIZE), block);
+        System.arraycopy(block, 0, image, b * BLOCK_SIZE, Math.min(BLOCK_SIZE, image.length - b * BLOCK_SIZE));
+        loadedBlocks[b] = true;
+    }
+
+    //Names of the files and directories in the root, hidden entries and "/" itself left out
+    public synchronized String[] list() {
+        loadAllNames();
+        ArrayList<String> names = new ArrayList<String>();
+        for (int i = 1; i < fsizes.length; i++) {
+            if (fsizes[i] > 0 && fnames[i][0] != '/') {
+                names.add(new String(fnames[i], 0, fsizes[i]));
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    //True if entry i holds exactly filename
+    private boolean sameName(int i, String filename) {
+        if (fsizes[i] != filename.length()) {
+            return false;
+        }
+        for (int c = 0; c < fsizes[i]; c++) {
+            if (fnames[i][c] != filename.charAt(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Hash of entry i's name, the same value String.hashCode gives for the name
+    private int nameHash(int i) {
+        int h = 0;
+        for (int c = 0; c < fsizes[i]; c++) {
+            h = 31 * h + fnames[i][c];
+        }
+        return h;
+    }
+
+    private void insertName(int i) {
+        if (fnames[i][0] == '/') {
+            return;                         //Hidden entries are never looked up by name
+        }
+        int mask = hashSlots.length - 1;
+        int probe = nameHash(i) & mask;
+        while (hashSlots[probe] >= 0) {     //Reuse the first empty or deleted slot
+            probe = (probe + 1) & mask;
+        }
+        if (hashSlots[probe] == DELETED) {
+            deletedSlots--;
+        }
+        hashSlots[probe] = i;
+    }
+
+    private void removeName(int i) {
+        if (fnames[i][0] == '/') {
+            return;
+        }
+        int mask = hashSlots.length - 1;
+        for (int probe = nameHash(i) & mask; hashSlots[probe] != EMPTY; probe = (probe + 1) & mask) {
+            if (hashSlots[probe] == i) {
+                hashSlots[probe] = DELETED;
+                deletedSlots++;
+                return;
+            }
+        }
+    }
+
+    //Size in bytes of the directory file this directory serializes to
+    public synchronized int imageSize() {
+        return image.length;
+    }
+
+    //True if block b of the directory file changed since the last markClean
+    public synchronized boolean blockDirty(int b) {
+        return dirtyBlocks[b];
+    }
+
+    //Copies block b of the directory image into buffer, zero padded past the end of the image
+    public synchronized void copyBlock(int b, byte[] buffer) {
+        int length = Math.min(BLOCK_SIZE, image.length - b * BLOCK_SIZE);
+        System.arraycopy(image, b * BLOCK_SIZE, buffer, 0, length);
+        Arrays.fill(buffer, length, BLOCK_SIZE, (byte)0);
+    }
+
+    //Called once the image has been written back
+    public synchronized void markClean() {
+        Arrays.fill(dirtyBlocks, false);
+    }
+
+    //Re-serializes entry i (its size and its 60-byte name) into the image and marks the blocks it touches
+    private void writeSlot(int i) {
+        int sizeOffset = i * BYTES_IN_AN_INTEGER;
+        SysLib.int2bytes(fsizes[i], image, sizeOffset);
+        dirtyBlocks[sizeOffset / BLOCK_SIZE] = true;
+        int nameOffset = BYTES_IN_AN_INTEGER * fsizes.length + FILE_NAME_MAX_NUMBER_OF_BYTES * i;
+        Arrays.fill(image, nameOffset, nameOffset + FILE_NAME_MAX_NUMBER_OF_BYTES, (byte)0);
+        byte[] name = new String(fnames[i], 0, fsizes[i]).getBytes();
+        System.arraycopy(name, 0, image, nameOffset, name.length);
+        dirtyBlocks[nameOffset / BLOCK_SIZE] = true;
+        dirtyBlocks[(nameOffset + FILE_NAME_MAX_NUMBER_OF_BYTES - 1) / BLOCK_SIZE] = true;
+    }
+
+    //Recomputes the hash index and the free-slot bitset from fsizes/fnames
+    private void rebuildIndex() {
+        Arrays.fill(hashSlots, EMPTY);
+        Arrays.fill(freeSlots, 0L);
+        deletedSlots = 0;
+        for (int i = 0; i < fsizes.length; i++) {
+            if (fsizes[i] > 0) {
+                if (loadedNames[i]) {           //Names still on disk are indexed when they are loaded
+                    insertName(i);
+                }
+            } else if (i > 0) {             //Entry 0 is the directory itself and is never handed out
+                freeSlots[i / 64] |= 1L << (i % 64);
+            }
+        }
+    }
+}
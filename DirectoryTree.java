@@ -0,0 +1,202 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//The file system's name space. The root directory is the original flat Directory, which also hands out every
+//iNumber: a file or directory further down takes a slot there under a hidden name and is named by an entry in its
+//parent Subdirectory. Paths are resolved one component at a time through the DentryCache, and a parent is only
+//searched when the cache has nothing for the name. Every method runs under this object's monitor, the one lock of
+//the name space, so lookup-or-create sequences are atomic when the caller holds it across them.
+public class DirectoryTree {
+    public final static short ROOT = 0;               //iNumber of "/"
+    private final static int DENTRY_CACHE_SIZE = 4096;
+    private final static int ROOT_NAME_MAX = 30;      //the root keeps the original fixed-size entries
+    private final static int BLOCK_SIZE = 512;
+
+    private final Directory root;
+    private final InodeTable inodes;
+    private final Journal journal;                    //directory files are metadata, read newest copy first
+    private final DentryCache dentries = new DentryCache(DENTRY_CACHE_SIZE);
+    private final HashMap<Short, Subdirectory> loaded = new HashMap<Short, Subdirectory>(); //decoded, by iNumber
+
+    public DirectoryTree(Directory root, InodeTable inodes, Journal journal) {
+        this.root = root;
+        this.inodes = inodes;
+        this.journal = journal;
+    }
+
+    //Returns the iNumber path names, or -1 if it does not exist. Paths are taken from the root whether or not they
+    //start with "/", empty and "." components are skipped and ".." goes up one level
+    public synchronized short lookup(String path) {
+        String[] components = split(path);
+        return resolve(components, components.length);
+    }
+
+    //Creates an empty file or directory at path and returns its iNumber. Returns -1 if the parent does not exist,
+    //the name is taken or not valid, or no iNumber is left. A new file's in-core inode is installed by the caller
+    public synchronized short create(String path, boolean directory) {
+        String[] components = split(path);
+        if (components.length == 0) {
+            return -1; //the root always exists
+        }
+        short parent = resolve(components, components.length - 1);
+        String name = components[components.length - 1];
+        if (parent < 0 || !isDirectory(parent) || !validName(parent, name) || child(parent, name) >= 0) {
+            return -1;
+        }
+        short iNumber = root.ialloc((parent == ROOT) ? name : Directory.HIDDEN + parent);
+        if (iNumber < 0) {
+            return -1; //every iNumber is in use
+        }
+        if (parent != ROOT) {
+            subdirectory(parent).add(name, iNumber);
+        }
+        dentries.put(parent, name, iNumber);
+        if (directory) {
+            Inode inode = inodes.ialloc(iNumber);
+            inode.flag = Inode.DIRECTORY;
+            inodes.iput(iNumber);
+            loaded.put(iNumber, new Subdirectory(parent)); //written out by the next sync
+        }
+        return iNumber;
+    }
+
+    //Unlinks path, which must still name iNumber, and frees its iNumber. The caller has already released its
+    //blocks, and made sure a directory is empty
+    public synchronized boolean remove(String path, short iNumber) {
+        String[] components = split(path);
+        if (components.length == 0 || iNumber == ROOT) {
+            return false;
+        }
+        short parent = resolve(components, components.length - 1);
+        String name = components[components.length - 1];
+        if (parent < 0 || child(parent, name) != iNumber) {
+            return false;
+        }
+        if (parent != ROOT) {
+            subdirectory(parent).remove(name);
+        }
+        if (!root.ifree(iNumber)) {
+            return false;
+        }
+        dentries.put(parent, name, DentryCache.NEGATIVE);
+        if (loaded.remove(iNumber) != null) {
+            dentries.forget(iNumber); //the iNumber may come back as another directory
+        }
+        return true;
+    }
+
+    //The names in the directory at path, null if path is not a directory
+    public synchronized String[] list(String path) {
+        short iNumber = lookup(path);
+        if (iNumber < 0 || !isDirectory(iNumber)) {
+            return null;
+        }
+        return (iNumber == ROOT) ? root.list() : subdirectory(iNumber).names();
+    }
+
+    public synchronized boolean isDirectory(short iNumber) {
+        if (iNumber == ROOT || loaded.containsKey(iNumber)) {
+            return true;
+        }
+        Inode inode = inodes.iget(iNumber);
+        boolean directory = inode.flag == Inode.DIRECTORY;
+        inodes.iput(iNumber);
+        return directory;
+    }
+
+    //True if the directory iNumber has no entries. The root never counts as empty
+    public synchronized boolean isEmpty(short iNumber) {
+        return iNumber != ROOT && subdirectory(iNumber).isEmpty();
+    }
+
+    //Takes the serialized contents of every subdirectory that changed since the last call, by iNumber
+    public synchronized Map<Short, byte[]> takeDirty() {
+        LinkedHashMap<Short, byte[]> dirty = new LinkedHashMap<Short, byte[]>();
+        for (Map.Entry<Short, Subdirectory> entry : loaded.entrySet()) {
+            if (entry.getValue().dirty) {
+                dirty.put(entry.getKey(), entry.getValue().toBytes());
+                entry.getValue().dirty = false;
+            }
+        }
+        return dirty;
+    }
+
+    public DentryCache dentries() {
+        return dentries;
+    }
+
+    //Resolves the first count components, -1 if some component is missing or not a directory
+    private short resolve(String[] components, int count) {
+        short current = ROOT;
+        for (int i = 0; i < count && current >= 0; i++) {
+            if (i > 0 && !isDirectory(current)) {
+                return -1;
+            }
+            if (components[i].equals("..")) {
+                current = (current == ROOT) ? ROOT : subdirectory(current).parent();
+            } else {
+                current = child(current, components[i]);
+            }
+        }
+        return current;
+    }
+
+    //Looks name up in parent, cache first
+    private short child(short parent, String name) {
+        short iNumber = dentries.get(parent, name);
+        if (iNumber == DentryCache.UNKNOWN) {
+            iNumber = (parent == ROOT) ? root.namei(name) : subdirectory(parent).lookup(name);
+            dentries.put(parent, name, (iNumber < 0) ? DentryCache.NEGATIVE : iNumber);
+        }
+        return iNumber;
+    }
+
+    private boolean validName(short parent, String name) {
+        if (name.equals("..") || name.startsWith(Directory.HIDDEN)) {
+            return false;
+        }
+        return (parent == ROOT) ? name.length() <= ROOT_NAME_MAX
+                : name.getBytes(StandardCharsets.UTF_8).length <= Subdirectory.MAX_NAME_BYTES;
+    }
+
+    //Returns the decoded subdirectory iNumber, reading its file the first time
+    private Subdirectory subdirectory(short iNumber) {
+        Subdirectory directory = loaded.get(iNumber);
+        if (directory == null) {
+            Inode inode = inodes.iget(iNumber);
+            inode.lock.readLock().lock();
+            try {
+                byte[] data = new byte[inode.length];
+                byte[] block = new byte[BLOCK_SIZE];
+                for (int offset = 0; offset < data.length; offset += BLOCK_SIZE) {
+                    journal.read(inode.findTargetBlock(offset), block);
+                    System.arraycopy(block, 0, data, offset, Math.min(BLOCK_SIZE, data.length - offset));
+                }
+                directory = new Subdirectory(data);
+            } finally {
+                inode.lock.readLock().unlock();
+                inodes.iput(iNumber);
+            }
+            loaded.put(iNumber, directory);
+        }
+        return directory;
+    }
+
+    //Splits a path into its components, dropping empty and "." ones
+    private static String[] split(String path) {
+        ArrayList<String> components = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i <= path.length(); i++) {
+            if (i == path.length() || path.charAt(i) == '/') {
+                if (i > start && !(i == start + 1 && path.charAt(start) == '.')) {
+                    components.add(path.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return components.toArray(new String[components.size()]);
+    }
+}
@@ -0,0 +1,40 @@
+import java.util.concurrent.CompletableFuture;
+
+//One queued operation for the DiskScheduler. The request is itself the future the submitter waits on, so a caller
+//can block with await(), poll isDone(), or chain a completion callback with thenRun()/whenComplete().
+//The buffer of a queued request belongs to the scheduler until the request completes.
+public class DiskRequest extends CompletableFuture<Integer> {
+    public final static int READ  = 0;
+    public final static int WRITE = 1;
+    public final static int SYNC  = 2;
+
+    public final int op;         //READ, WRITE or SYNC
+    public final int block;      //target block number, unused for SYNC
+    public final byte[] buffer;  //data to write, or where a read lands
+    final long seq;              //arrival order, used for FCFS and to keep same-block requests in order
+
+    DiskRequest(int op, int block, byte[] buffer, long seq) {
+        this.op = op;
+        this.block = block;
+        this.buffer = buffer;
+        this.seq = seq;
+    }
+
+    //Blocks until the disk has served this request and returns Kernel.OK or Kernel.ERROR
+    public int await() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                int result = get();
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return result;
+            } catch (InterruptedException e) {
+                interrupted = true; //keep waiting, the request is already queued and will complete
+            } catch (Exception e) {
+                return Kernel.ERROR;
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.io.IOException;
+import java.util.ArrayList;
+
+//Disk request queue in front of the simulated Disk. Any number of threads can have requests in flight; a single
+//dispatcher thread feeds them to the disk one at a time, in C-SCAN (circular elevator) order by default or in
+//arrival order when built with FCFS. Requests for the same block always keep their arrival order, consecutive reads
+//of one block share a single disk read, and consecutive writes of one block collapse into the last one. Under FCFS
+//consecutive means next to each other in the queue, so no request is ever served before one that arrived earlier.
+//Under C-SCAN a run of consecutive blocks of the same kind is taken off the queue in one go and served back to back
+//in sweep order. The Disk still takes one block per command, so a run saves queue scans and dispatcher round trips,
+//not disk commands; nothing arriving meanwhile can cut into the run.
+//A SYNC request is a barrier: everything queued before it is served first, nothing queued after it jumps ahead.
+//An operation the disk keeps turning down, such as one past its last block, fails its requests with an IOException
+//after MAX_ATTEMPTS tries, and await() returns Kernel.ERROR for them.
+public class DiskScheduler extends Thread implements BlockDevice {
+    public final static int FCFS  = 0;
+    public final static int CSCAN = 1;
+
+    private final static int COND_DISK_FIN = 2; // same wait condition the kernel used for the raw disk
+    private final static int MAX_ATTEMPTS = 4;  //tries before an operation the disk turns down is failed
+    private final static long RETRY_MILLIS = 1; //back-off between them, grows with every try
+    private final static int MAX_RUN = 64;      //consecutive blocks taken off the queue together
+
+    private final Disk disk;
+    private final SyncQueue ioQueue;          //woken by the kernel on every disk interrupt
+    private final int policy;
+    private final ArrayList<DiskRequest> pending = new ArrayList<DiskRequest>();
+    private long nextSeq;                     //arrival counter
+    private int head;                         //block the disk arm is on after the last request
+
+    public DiskScheduler(Disk disk, SyncQueue ioQueue, int policy) {
+        this.disk = disk;
+        this.ioQueue = ioQueue;
+        this.policy = policy;
+        head = 0;
+        setDaemon(true);
+    }
+
+    //Queues a read of blockId into buffer and returns at once
+    public DiskRequest submitRead(int blockId, byte[] buffer) {
+        return submit(DiskRequest.READ, blockId, buffer);
+    }
+
+    //Queues a write of buffer to blockId and returns at once
+    public DiskRequest submitWrite(int blockId, byte[] buffer) {
+        return submit(DiskRequest.WRITE, blockId, buffer);
+    }
+
+    //Blocking forms used by the RAWREAD/RAWWRITE/SYNC system calls
+    public boolean read(int blockId, byte[] buffer) {
+        return submitRead(blockId, buffer).await() == Kernel.OK;
+    }
+
+    public boolean write(int blockId, byte[] buffer) {
+        return submitWrite(blockId, buffer).await() == Kernel.OK;
+    }
+
+    public boolean sync() {
+        return submit(DiskRequest.SYNC, -1, null).await() == Kernel.OK;
+    }
+
+    private synchronized DiskRequest submit(int op, int blockId, byte[] buffer) {
+        DiskRequest request = new DiskRequest(op, blockId, buffer, nextSeq++);
+        pending.add(request);
+        notify(); //wake the dispatcher if it is idle
+        return request;
+    }
+
+    public void run() {
+        while (true) {
+            ArrayList<ArrayList<DiskRequest>> run = nextRun();
+            for (int i = 0; i < run.size(); i++) {
+                serveBatch(run.get(i));
+            }
+        }
+    }
+
+    //Serves one group of requests for the same block, or a barrier, with a single disk operation
+    private void serveBatch(ArrayList<DiskRequest> batch) {
+        DiskRequest first = batch.get(0);
+        boolean ok;
+        if (first.op == DiskRequest.SYNC) {
+            ok = serve(DiskRequest.SYNC, -1, null);
+        } else if (first.op == DiskRequest.READ) {
+            ok = serve(DiskRequest.READ, first.block, first.buffer); //one disk read for the whole batch
+            for (int i = 1; ok && i < batch.size(); i++) {
+                System.arraycopy(first.buffer, 0, batch.get(i).buffer, 0, first.buffer.length);
+            }
+        } else {
+            DiskRequest last = batch.get(batch.size() - 1);
+            ok = serve(DiskRequest.WRITE, last.block, last.buffer); //only the newest contents reach the disk
+        }
+        if (first.op != DiskRequest.SYNC) {
+            head = first.block;
+        }
+        IOException failure = null;
+        if (!ok) {
+            String what = (first.op == DiskRequest.SYNC) ? "sync"
+                    : ((first.op == DiskRequest.READ) ? "read of block " : "write of block ") + first.block;
+            failure = new IOException("disk turned down " + what + " " + MAX_ATTEMPTS + " times");
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (ok) {
+                batch.get(i).complete(Kernel.OK);
+            } else {
+                batch.get(i).completeExceptionally(failure);
+            }
+        }
+    }
+
+    //Waits for work and removes the next requests to serve: a barrier on its own, or the group for the chosen
+    //block (its earliest request and the requests of the same kind for that block right behind it). Under FCFS
+    //that is the head of the queue and the entries right behind it for the same block and of the same kind. Under
+    //C-SCAN the groups of the blocks right after it follow, as long as each one starts with a request of that same
+    //kind
+    private synchronized ArrayList<ArrayList<DiskRequest>> nextRun() {
+        while (pending.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                //keep serving, the dispatcher lives as long as the kernel
+            }
+        }
+        int barrier = pending.size(); //only requests queued before the first SYNC may be served
+        for (int i = 0; i < pending.size(); i++) {
+            if (pending.get(i).op == DiskRequest.SYNC) {
+                barrier = i;
+                break;
+            }
+        }
+        ArrayList<ArrayList<DiskRequest>> run = new ArrayList<ArrayList<DiskRequest>>();
+        if (barrier == 0) {
+            ArrayList<DiskRequest> batch = new ArrayList<DiskRequest>();
+            batch.add(pending.remove(0));
+            run.add(batch);
+            return run;
+        }
+        if (policy == FCFS) { //strict arrival order, a request further back never joins the head's batch
+            ArrayList<DiskRequest> batch = new ArrayList<DiskRequest>();
+            DiskRequest first = pending.remove(0);
+            batch.add(first);
+            while (!pending.isEmpty() && pending.get(0).op == first.op && pending.get(0).block == first.block) {
+                batch.add(pending.remove(0)); //a SYNC never matches, so the barrier holds
+            }
+            run.add(batch);
+            return run;
+        }
+        int block = chooseBlock(barrier);
+        int kind = -1;
+        while (true) {
+            ArrayList<DiskRequest> batch = new ArrayList<DiskRequest>();
+            for (int i = 0; i < barrier; ) { //pending is in arrival order, so the first match is the earliest
+                DiskRequest request = pending.get(i);
+                if (request.block != block) {
+                    i++;
+                } else if (kind == -1 || request.op == kind) {
+                    kind = request.op;
+                    batch.add(pending.remove(i));
+                    barrier--;
+                } else {
+                    break; //a different kind of request for this block has to wait its turn
+                }
+            }
+            if (batch.isEmpty()) {
+                break; //the run ends at the first block with nothing of this kind waiting first
+            }
+            run.add(batch);
+            if (run.size() == MAX_RUN) {
+                break;
+            }
+            block++;
+        }
+        return run;
+    }
+
+    //Picks the block to serve next among the first count pending requests, in C-SCAN order
+    private int chooseBlock(int count) {
+        int ahead = -1;  //closest block at or past the head
+        int lowest = -1; //where the arm restarts once nothing is left ahead of it
+        for (int i = 0; i < count; i++) {
+            int block = pending.get(i).block;
+            if (block >= head && (ahead == -1 || block < ahead)) {
+                ahead = block;
+            }
+            if (lowest == -1 || block < lowest) {
+                lowest = block;
+            }
+        }
+        return (ahead != -1) ? ahead : lowest;
+    }
+
+    //Hands one operation to the disk and waits for it to finish, the same handshake the kernel used to do inline.
+    //Returns false, with nothing transferred, once the disk has turned the operation down MAX_ATTEMPTS times.
+    //A turned-down operation raises no disk interrupt, so the retries back off on a timer and not on ioQueue,
+    //which nothing would wake
+    private boolean serve(int op, int blockId, byte[] buffer) {
+        for (int attempt = 1; ; attempt++) {
+            boolean accepted;
+            if (op == DiskRequest.READ) {
+                accepted = disk.read(blockId, buffer);
+            } else if (op == DiskRequest.WRITE) {
+                accepted = disk.write(blockId, buffer);
+            } else {
+                accepted = disk.sync();
+            }
+            if (accepted) {
+                break;
+            }
+            if (attempt == MAX_ATTEMPTS) {
+                return false;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS * attempt);
+            } catch (InterruptedException e) {
+                //retry right away, the dispatcher lives as long as the kernel
+            }
+        }
+        while (disk.testAndResetReady() == false) {
+            ioQueue.enqueueAndSleep(COND_DISK_FIN);
+        }
+        return true;
+    }
+}
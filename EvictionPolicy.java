@@ -0,0 +1,13 @@
+//Strategy used by the Cache to decide which frame gives up its block when a miss finds no free frame.
+//The cache reports every hit and fill through access() so the policy can keep its own bookkeeping per frame.
+public interface EvictionPolicy {
+    //Called once by the cache with the number of frames it owns before any other call
+    void reset(int frames);
+
+    //Called whenever the block held by the given frame is read, written, or freshly loaded
+    void access(int frame);
+
+    //Returns the frame to evict; every frame is valid when this is called and dirty[] tells which ones
+    //will cost a disk write to give up
+    int victim(boolean[] dirty);
+}
@@ -0,0 +1,66 @@
+import java.nio.ByteBuffer;
+
+//User-side handle on an open file, returned by SysLib.openHandle. It keeps the file table entry its descriptor
+//names, so size, seek and tell run in the calling thread instead of going through Kernel.interrupt, the scheduler
+//and the TCB's descriptor table. Seek and tell take the entry's monitor, the one every read and write of the entry
+//holds, so a seek is seen by the next read on any thread and tell sees where the last read or write ended. Calls
+//that move data still go through the kernel by descriptor. Close the file through its handle: once the handle is
+//closed every call returns -1, the same as on a closed descriptor.
+public class FileHandle {
+    public final int fd;                  // the descriptor the data calls go through
+    private final FileTableEntry entry;   // the open file, shared with the kernel
+    private final FileSystem fileSystem;
+    private volatile boolean closed;
+
+    public FileHandle(int fd, FileTableEntry entry, FileSystem fileSystem) {
+        this.fd = fd;
+        this.entry = entry;
+        this.fileSystem = fileSystem;
+    }
+
+    //The file size in bytes, SysLib.fsize without the system call
+    public int size() {
+        return closed ? -1 : entry.inode.length;
+    }
+
+    //Moves the seek pointer as SysLib.seek does and returns where it ended up
+    public int seek(int offset, int whence) {
+        return closed ? -1 : fileSystem.seek(entry, offset, whence);
+    }
+
+    //Where the seek pointer is
+    public int tell() {
+        if (closed) {
+            return -1;
+        }
+        synchronized (entry) {
+            return entry.seekPtr;
+        }
+    }
+
+    public int read(byte[] buffer) {
+        return closed ? -1 : SysLib.read(fd, buffer);
+    }
+
+    public int write(byte[] buffer) {
+        return closed ? -1 : SysLib.write(fd, buffer);
+    }
+
+    //Seeks to offset from the top of the file and reads from there, one system call instead of two
+    public int seekAndRead(int offset, byte[] buffer) {
+        return closed ? -1 : SysLib.seekAndRead(fd, offset, buffer);
+    }
+
+    //Reads at offset without moving the seek pointer, see SysLib.pread
+    public int readAt(ByteBuffer dst, int offset) {
+        return closed ? -1 : SysLib.pread(fd, dst, offset);
+    }
+
+    public int close() {
+        if (closed) {
+            return -1;
+        }
+        closed = true;
+        return SysLib.close(fd);
+    }
+}
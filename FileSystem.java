@@ -1,58 +1,312 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 public class FileSystem {
     private SuperBlock superblock;
     private Directory directory;
+    private DirectoryTree tree; //path lookup through the root and its subdirectories
     private FileTable filetable;
+    private InodeTable inodes;
+    private final Cache cache; //ByteBuffer transfers copy straight to and from the cached blocks
+    private final Prefetcher prefetcher; //pulls blocks into the cache ahead of sequential readers
+    private final Reclaimer reclaimer;   //frees the index trees of truncated files in the background
+    //Held shared by every sync and exclusively by unmount, so nothing is committed between the log being emptied
+    //and the disk being marked clean
+    private final ReentrantReadWriteLock mountLock = new ReentrantReadWriteLock();
+    //Held shared by a truncation while it empties an inode and frees its blocks, and exclusively by a commit from
+    //staging the first block to sealing the transaction. A transaction so holds an emptied inode together with the
+    //frees and the orphan that go with it, never one without the other. Taken before the tree monitor and any inode
+    //lock
+    private final ReentrantReadWriteLock stageLock = new ReentrantReadWriteLock();
+    private final long[] mountNanos = new long[4]; //superblock, journal recovery, directory, total
+    private Thread committer;          //commits every threados.journal.interval ms, null if it does not run
+    private volatile boolean shutDown; //set by shutdown, stops the committer
 
     private static final int SEEK_SET = 0;
     private static final int SEEK_CUR = 1;
     private static final int SEEK_END = 2;
+    public static final int SEEK_DATA = 3; //to the first byte at or after offset in a mapped block
+    public static final int SEEK_HOLE = 4; //to the first byte at or after offset in a hole, the end counts as one
+    private static final int BLOCK_SIZE = 512;
+    private static final int PREALLOCATION_WINDOW = 8; //blocks reserved ahead for a file being written
+    private static final int APPEND_MAP_AHEAD = 8;     //blocks mapped past an append so the next ones need no lock
+    private static final int APPEND_SPINS = 64;        //yields an appender waits for the one before it to finish
+    private static final byte[] ZERO_BLOCK = new byte[BLOCK_SIZE];
+    private static final int READ_AHEAD_MIN = 2;       //blocks prefetched once a reader looks sequential
+    private static final int READ_AHEAD_MAX = 16;      //the window doubles on every sequential read up to this
+    private static final int IN_BLOCKS = 0;            //placeWrite: the write goes to the file's blocks
+    private static final int IN_INODE = 1;             //placeWrite: the write goes to the inode's inline data
+
+    //One block-sized scratch buffer per thread, reused by every read and write instead of a new byte[512] per block
+    private static final ThreadLocal<byte[]> scratchBlock = ThreadLocal.withInitial(() -> new byte[BLOCK_SIZE]);
 
-    public FileSystem(int diskBlocks) {
-        //create superblock, and format disk with 64 inodes default
+    public FileSystem(int diskBlocks, Cache cache) {
+        this.cache = cache;
+        long started = System.nanoTime();
+        //create superblock, and format disk with 64 inodes default. A disk that can be neither mounted nor
+        //converted throws IllegalStateException here, before any thread is started
         superblock = new SuperBlock(diskBlocks);
+        prefetcher = new Prefetcher(cache, BLOCK_SIZE);
+        prefetcher.start();
+        long phase = System.nanoTime();
+        mountNanos[0] = phase - started;
+        if (superblock.clean) {
+            superblock.journal.resume(); //cleanly unmounted, there is nothing in the log to recover
+        } else if (superblock.journal.replay() > 0) {
+            //finish whatever metadata transactions were committed before the last shutdown or crash
+            superblock.reload(); //the replay may have rewritten bitmap blocks
+        }
+        mountNanos[1] = System.nanoTime() - phase;
+        reclaimer = new Reclaimer(superblock);
+        reclaimer.resume(superblock.orphans()); //trees truncated before the last shutdown and not freed yet
+        reclaimer.start();
+        phase = System.nanoTime();
         //create directory, and register "/" in directory entry 0
         directory = new Directory(superblock.inodeBlocks);
-        //file table is created, and store directory in the file table
-        filetable = new FileTable(directory);
-        //directory reconstruction
+        //in-core inode table shared by every open of the same file
+        inodes = new InodeTable(superblock.inodeBlocks, superblock.version, superblock.journal);
+        //file table is created, and store the name space in the file table
+        tree = new DirectoryTree(directory, inodes, superblock.journal);
+        filetable = new FileTable(tree, inodes);
+        //directory reconstruction, only the entry sizes are read now and the names as lookups need them
         FileTableEntry dirEnt = open("/", "r");
         int dirSize = fsize(dirEnt);
-        if (dirSize > 0) {
-            byte[] dirData = new byte[dirSize];
+        if (dirSize > 0 && (dirSize != directory.imageSize() || !directory.attach(dirEnt.inode, superblock.journal))) {
+            byte[] dirData = new byte[dirSize]; //written with another inode count, read and decode all of it
             read(dirEnt, dirData);
             directory.bytes2directory(dirData);
         }
         close(dirEnt);
+        mountNanos[2] = System.nanoTime() - phase;
+        mountNanos[3] = System.nanoTime() - started;
+        if (Boolean.getBoolean("threados.mount.verbose")) {
+            SysLib.cerr("ThreadOS: mounted " + (superblock.clean ? "clean" : "after recovery") + " in "
+                    + mountNanos[3] / 1000 + "us (superblock " + mountNanos[0] / 1000 + "us, journal "
+                    + mountNanos[1] / 1000 + "us, directory " + mountNanos[2] / 1000 + "us)\n");
+        }
+        //commit metadata in the background too, so freed blocks come back and a crash loses at most this much
+        int interval = Integer.getInteger("threados.journal.interval", 5000);
+        if (superblock.journal.enabled() && interval > 0) {
+            committer = new Thread(() -> {
+                while (!shutDown) {
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        //commit early, or stop
+                    }
+                    if (!shutDown) {
+                        sync();
+                    }
+                }
+            });
+            committer.setDaemon(true);
+            committer.start();
+        }
     }
 
+    //Stages every metadata change in the journal and commits it as one transaction: the directory blocks, the
+    //inodes with their index blocks, then the superblock and bitmap. File data is pushed to disk before the commit
+    //so committed metadata never points at blocks whose contents did not make it
     public void sync() {
-        FileTableEntry syncEntry = open("/", "w");//open the directory for writing
-        byte[] data = directory.directory2bytes(); //initialize a byte array with the data from directory
-        write(syncEntry, data); //write the data in the entry to disk
-        close(syncEntry); //close the file because we're done with it
-        superblock.sync();//Syncs the contents of the superblock to disk by converting all necessary data to byte
-        //format within a temporary byte array and then writing the contents of the array to disk
+        mountLock.readLock().lock();
+        try {
+            commit();
+        } finally {
+            mountLock.readLock().unlock();
+        }
+    }
+
+    //Syncs, then empties the journal and marks the disk clean, so the next mount skips recovery. The file system
+    //stays usable: the journal marks the disk in use again before it writes the next transaction
+    public void unmount() {
+        mountLock.writeLock().lock();
+        try {
+            reclaimer.drain(); //free what truncated files left behind, so it is committed below
+            commit();
+            if (superblock.journal.enabled()) { //without a journal there is no recovery to skip
+                superblock.journal.drain(); //every committed image reaches its home block
+                superblock.markClean();
+            }
+        } finally {
+            mountLock.writeLock().unlock();
+        }
+    }
+
+    //Time the constructor spent mounting, in nanoseconds: reading the superblock and bitmap, recovering the
+    //journal, loading the directory, and all of it together
+    public long[] mountTimes() {
+        return mountNanos.clone();
+    }
+
+    //Blocks currently free, read without the superblock's lock so it may be a moment out of date
+    public int freeBlocks() {
+        return superblock.freeBlocks;
+    }
+
+    //Unmounts and stops the committer, the Prefetcher and the Reclaimer, waiting for each to finish. For programs
+    //that mount one file system after another in the same JVM; the file system must not be used afterwards
+    public void shutdown() {
+        unmount();
+        shutDown = true;
+        try {
+            if (committer != null) {
+                committer.interrupt(); //out of its sleep
+                committer.join();
+            }
+            prefetcher.shutdown();
+            prefetcher.join();
+            reclaimer.shutdown();
+            reclaimer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); //stopped waiting, the threads still end on their own
+        }
+    }
+
+    public int openFiles() {
+        return filetable.size();
+    }
+
+    //Adds the file system's gauges to into for SysLib.stats: free blocks, open files, dentry cache hits and misses
+    public void stats(Map<String, Long> into) {
+        into.put("fs.freeBlocks", (long)freeBlocks());
+        into.put("fs.openFiles", (long)openFiles());
+        into.put("fs.dentryHits", tree.dentries().hits());
+        into.put("fs.dentryMisses", tree.dentries().misses());
+    }
+
+    //Stages every changed metadata block and commits them as one transaction. Only the staging excludes truncation
+    //and other commits; the log write runs after the transaction is sealed, and sync callers that seal theirs in
+    //the meantime go out together in the next one
+    private void commit() {
+        int[] freed;
+        long tid;
+        stageLock.writeLock().lock(); //no truncation until this transaction is sealed
+        try {
+            synchronized (tree) { //no file can be created or deleted while the directories are written out
+                synchronized (directory) {
+                    if (!syncDirectoryInPlace()) { //the directory file does not match the image yet, rewrite all of it
+                        FileTableEntry syncEntry = open("/", "w");//open the directory for writing
+                        byte[] data = directory.directory2bytes(); //initialize a byte array with the data from directory
+                        write(syncEntry, data); //write the data in the entry to disk
+                        close(syncEntry); //close the file because we're done with it
+                        syncDirectoryInPlace(); //and stage every block of it as metadata
+                    }
+                }
+                for (Map.Entry<Short, byte[]> changed : tree.takeDirty().entrySet()) {
+                    syncSubdirectory(changed.getKey(), changed.getValue());
+                }
+            }
+            inodes.sync(); //write back every inode that changed since the last sync, one block at a time
+            //taken after the inodes are staged: exactly the blocks they, and the directory rewrites above, let go of,
+            //and the orphan list as it stands with them
+            freed = superblock.takeFreed();
+            superblock.sync(freed);//Syncs the contents of the superblock to disk by converting all necessary data to byte
+            //format within a temporary byte array and then writing the contents of the array to disk
+            tid = superblock.journal.seal(); //nothing else is staged while this runs, the transaction is what was staged here
+        } finally {
+            stageLock.writeLock().unlock();
+        }
+        superblock.journal.commit(tid); //syncs the file data first
+        superblock.releaseFreed(freed); //committed, the blocks may be handed out again
+    }
+
+    //Rewrites only the directory blocks whose entries changed, in place in the blocks the directory file already
+    //owns. Returns false when the file on disk does not have the directory's current size, so nothing was written
+    private boolean syncDirectoryInPlace() {
+        FileTableEntry dirEnt = open("/", "r");
+        boolean inPlace = fsize(dirEnt) == directory.imageSize();
+        int blocks = (directory.imageSize() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        for (int b = 0; inPlace && b < blocks; b++) {
+            inPlace = dirEnt.inode.findTargetBlock(b * BLOCK_SIZE) >= 0; //every block must already be mapped
+        }
+        if (inPlace) {
+            byte[] block = scratchBlock.get();
+            for (int b = 0; b < blocks; b++) {
+                if (directory.blockDirty(b)) {
+                    directory.copyBlock(b, block);
+                    superblock.journal.write(dirEnt.inode.findTargetBlock(b * BLOCK_SIZE), block);
+                }
+            }
+            directory.markClean();
+        }
+        close(dirEnt);
+        return inPlace;
+    }
+
+    //Writes a changed subdirectory back and stages all of its blocks as metadata. A directory whose size changed is
+    //truncated and rewritten first; the truncated blocks stay allocated until this transaction commits, so the
+    //rewrite only ever lands in blocks no committed metadata points at
+    private void syncSubdirectory(short iNumber, byte[] image) {
+        FileTableEntry entry = filetable.falloc(iNumber, "w");
+        if (fsize(entry) != image.length) {
+            entry.inode.lock.writeLock().lock();
+            try {
+                deallocAllBlocks(entry, false); //inside the commit, freed straight into this transaction
+            } finally {
+                entry.inode.lock.writeLock().unlock();
+            }
+            write(entry, image);
+        }
+        byte[] block = scratchBlock.get();
+        for (int offset = 0; offset < image.length; offset += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, image.length - offset);
+            System.arraycopy(image, offset, block, 0, length);
+            Arrays.fill(block, length, BLOCK_SIZE, (byte)0);
+            superblock.journal.write(entry.inode.findTargetBlock(offset), block);
+        }
+        close(entry);
     }
 
+    //Formats the disk if no file is open. Commits and truncations are held off for the whole format, as on unmount,
+    //and the Reclaimer finishes the orphans it has first: freed any later, their blocks would be freed again in the
+    //new bitmap, where they may already belong to new files
     public boolean format(int files) {
-        //check that we can actually reformat the file table now
-        if (filetable.fempty()) {
-            superblock.format(files); //Format the superblock with the given number of files
-            directory = new Directory(superblock.inodeBlocks); //Resets the directory by cleaning all aspects of the
-            // directory and instantiating only up to iNodeBlocks number of inodeblocks
-            filetable = new FileTable(directory); // initialize a new file table given the
-            //file systems root directory that was just reformatted
-            return true; //signify proper completion
+        mountLock.writeLock().lock(); //no commit, neither of the committer thread nor of a sync call
+        try {
+            stageLock.writeLock().lock(); //no truncation, so no orphan is submitted while formatting
+            try {
+                //check that we can actually reformat the file table now
+                if (filetable.fempty()) {
+                    reclaimer.drain(); //nothing of the old disk is freed after the format
+                    superblock.format(files); //Format the superblock with the given number of files
+                    directory = new Directory(superblock.inodeBlocks); //Resets the directory by cleaning all aspects of the
+                    // directory and instantiating only up to iNodeBlocks number of inodeblocks
+                    inodes = new InodeTable(superblock.inodeBlocks, superblock.version, superblock.journal); //forget every in-core inode of the old disk
+                    tree = new DirectoryTree(directory, inodes, superblock.journal);
+                    filetable = new FileTable(tree, inodes); // initialize a new file table given the
+                    //file systems root directory that was just reformatted
+                    return true; //signify proper completion
+                }
+                return false; // cannot format
+            } finally {
+                stageLock.writeLock().unlock();
+            }
+        } finally {
+            mountLock.writeLock().unlock();
         }
-        return false; // cannot format
     }
 
     public FileTableEntry open(String filename, String mode) {
         //allocate a new entry in the file table with file allocation
         //with the specified file name and mode of access
         FileTableEntry allocateNewEntry = filetable.falloc(filename, mode);
+        if (allocateNewEntry == null) {//no such file to read, or no room to create it
+            return null;
+        }
         if (mode.equals("w")) {//if it was a write mode
-            if (!deallocAllBlocks(allocateNewEntry)) {//cant deallocate the file if it's in use
+            stageLock.readLock().lock(); //the emptied inode and its freed blocks go into the same transaction
+            allocateNewEntry.inode.lock.writeLock().lock(); //truncation excludes every reader and writer of the file
+            boolean truncated;
+            try {
+                truncated = deallocAllBlocks(allocateNewEntry, true);
+            } finally {
+                allocateNewEntry.inode.lock.writeLock().unlock();
+                stageLock.readLock().unlock();
+            }
+            if (!truncated) {//cant deallocate the file if it's in use
+                close(allocateNewEntry); //do not leave the half-opened entry behind in the file table
                 return null;
             } else {
                 //it wasn't a write so we can just return the entry as an open file to the caller
@@ -68,7 +322,18 @@ public class FileSystem {
         //for example, 10 threads using the file table entry and 1 calls close, this will simply decrement
         //to 9 and return true. if there was only 1 thread operating on this file and this file gets closed
         //then the filetable frees the entry from the cache
-        return (--ftEnt.count > 0 || filetable.ffree(ftEnt));
+        synchronized (ftEnt) { //count and the reservation are shared by every thread using this entry
+            if (ftEnt.count == 1) {
+                releaseReservation(ftEnt); //the last user is leaving, nobody will write into the preallocated blocks
+            }
+            if (--ftEnt.count > 0) {
+                return true;
+            }
+        }
+        if (ftEnt.mode.equals("a")) {
+            releaseAppendTail(ftEnt); //outside the entry monitor, the stage lock comes before it
+        }
+        return filetable.ffree(ftEnt);
     }
 
     public int fsize(FileTableEntry ftEnt) {
@@ -79,98 +344,596 @@ public class FileSystem {
         //return error if the mode is write or append
         if (entry.mode.equals("w") && entry.mode.equals("a")) {
             return -1;
-        } else { // otherwise, call a recursive read from disk
-            return recursiveReadHelper(data.length, entry, data, 0);//return the read result found in recursive wind
-        }
-    }
-
-    private int recursiveReadHelper(int dataLength, FileTableEntry entry, byte[] data, int readReturn) {
-        int targetBlockPtr; //scoped variable to be set for the target block to extract
-        if (dataLength > 0 && entry.seekPtr < fsize(entry)) {//if there's stuff to read
-            targetBlockPtr = entry.inode.findTargetBlock(entry.seekPtr);//start the target block ptr
-            if (targetBlockPtr == -1) {//base case complete read
-                return readReturn;
-            }
-            //initialize the from disk
-            byte[] fromDisk = new byte[512];
-            //read the block into from disk
-            SysLib.rawread(targetBlockPtr, fromDisk);
-            int blockLoc = entry.seekPtr % 512; //this will return what block you're in
-            //return how much data actually needs to be read, because that will show how far
-            //the seeker has gotten on the file, based on the size of the file remaining positive
-            int min = Math.min(Math.min(512 - blockLoc, dataLength), fsize(entry) - entry.seekPtr);
-            //copying data from the disk at the given block location into data, and the start position for the dest
-            //given the length defined by minimum which is grabbed from extracting the correct block index
-            //on the disk
-            System.arraycopy(fromDisk, blockLoc, data, readReturn, min);
-            //add to the seek ptr to increment the read location
-            entry.seekPtr += min;
-            //the readReturn gets as well because it's where the seekPtr ends up
-            //you need to read min less spaces now
-            //keep winding the stack and return where the seek ptr ends up
-            return recursiveReadHelper(dataLength - min, entry, data, readReturn + min);
-        } else { //base case, complete read
+        } else { // otherwise, read from disk
+            synchronized (entry) { //the seek pointer is shared by every thread using this entry
+                entry.inode.lock.readLock().lock(); //readers of the same file run in parallel
+                try {
+                    int start = entry.seekPtr;
+                    int readReturn = readBlocks(entry, data);
+                    readAhead(entry, start, readReturn);
+                    return readReturn;
+                } finally {
+                    entry.inode.lock.readLock().unlock();
+                }
+            }
+        }
+    }
+
+    //Copies file bytes from the seek pointer into data one block at a time, until data is full or the file ends,
+    //and moves the seek pointer past them. Every block goes through this thread's scratch block, so a read of any
+    //size allocates nothing and uses one stack frame. A hole reads as zeros without touching the disk. The caller
+    //holds the inode's read lock
+    private int readBlocks(FileTableEntry entry, byte[] data) {
+        if (entry.inode.inlineData != null) { //a small file, its data came in with the inode
+            int readReturn = Math.max(0, Math.min(data.length, fsize(entry) - entry.seekPtr));
+            if (readReturn > 0) {
+                System.arraycopy(entry.inode.inlineData, entry.seekPtr, data, 0, readReturn);
+                entry.seekPtr += readReturn;
+            }
             return readReturn;
         }
+        byte[] fromDisk = scratchBlock.get();
+        int readReturn = 0;
+        while (readReturn < data.length && entry.seekPtr < fsize(entry)) {
+            int targetBlockPtr = entry.inode.findTargetBlock(entry.seekPtr);
+            int blockLoc = entry.seekPtr % BLOCK_SIZE; //where in the block the seek pointer is
+            //no more than the rest of the block, the room left in data, or what is left of the file
+            int min = Math.min(Math.min(BLOCK_SIZE - blockLoc, data.length - readReturn), fsize(entry) - entry.seekPtr);
+            if (targetBlockPtr < 0) { //never written, a hole
+                Arrays.fill(data, readReturn, readReturn + min, (byte)0);
+            } else {
+                SysLib.cread(targetBlockPtr, fromDisk);
+                System.arraycopy(fromDisk, blockLoc, data, readReturn, min);
+            }
+            entry.seekPtr += min;
+            readReturn += min;
+        }
+        return readReturn;
     }
 
     public int write(FileTableEntry entry, byte[] data) {
         if(entry.mode.equals("r")) {//if it was a read, then you're calling the wrong method
             return -1;
+        } else if (entry.mode.equals("a")) {//every write goes to the end of the file
+            return append(entry, new ByteBuffer[]{ByteBuffer.wrap(data)});
         } else {//do the write work
-            return recursiveWriteHelper(data.length, 0, entry, data);
+            synchronized (entry) { //the seek pointer and the reservation are shared by every thread using this entry
+                entry.inode.lock.writeLock().lock(); //writers of the same file take turns, other files are unaffected
+                try {
+                    return writeBlocks(entry, data);
+                } finally {
+                    entry.inode.lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    //Reads from the seek pointer into dst, filling it up to its limit or to the end of the file, and moves the
+    //seek pointer past what was read. Heap and direct buffers are filled straight from the cached blocks
+    public int read(FileTableEntry entry, ByteBuffer dst) {
+        return read(entry, new ByteBuffer[]{dst});
+    }
+
+    //Scatter read: fills each buffer in turn, in one pass under one lock, so the bytes land in the buffers
+    //exactly as one contiguous read would have returned them
+    public int read(FileTableEntry entry, ByteBuffer[] dsts) {
+        synchronized (entry) { //the seek pointer is shared by every thread using this entry
+            entry.inode.lock.readLock().lock();
+            try {
+                int start = entry.seekPtr;
+                int total = 0;
+                for (int i = 0; i < dsts.length; i++) {
+                    int n = readAt(entry, entry.seekPtr, dsts[i]);
+                    entry.seekPtr += n;
+                    total += n;
+                    if (dsts[i].hasRemaining()) { //reached the end of the file
+                        break;
+                    }
+                }
+                readAhead(entry, start, total);
+                return total;
+            } finally {
+                entry.inode.lock.readLock().unlock();
+            }
+        }
+    }
+
+    //Read-ahead bookkeeping after a read of count bytes at start. A read that starts where the previous one ended
+    //is sequential: the window opens at READ_AHEAD_MIN blocks and doubles up to READ_AHEAD_MAX, and the blocks in it
+    //that were not requested yet go to the prefetcher. Anything else closes the window. The caller holds the entry
+    //monitor and the inode's read lock
+    private void readAhead(FileTableEntry entry, int start, int count) {
+        if (count <= 0 || entry.inode.inlineData != null) { //an inline file has no blocks to prefetch
+            return;
+        }
+        if (start != entry.readAheadOffset) { //random access, stop prefetching for this entry
+            entry.readAheadWindow = 0;
+            entry.readAheadNext = 0;
+        } else {
+            entry.readAheadWindow = (entry.readAheadWindow == 0) ? READ_AHEAD_MIN
+                    : Math.min(entry.readAheadWindow * 2, READ_AHEAD_MAX);
+        }
+        int end = start + count;
+        entry.readAheadOffset = end;
+        if (entry.readAheadWindow == 0) {
+            return;
+        }
+        int lastFileBlock = (entry.inode.length - 1) / BLOCK_SIZE;
+        int first = Math.max((end + BLOCK_SIZE - 1) / BLOCK_SIZE, entry.readAheadNext);
+        int last = Math.min((end - 1) / BLOCK_SIZE + entry.readAheadWindow, lastFileBlock);
+        for (int b = first; b <= last; b++) {
+            int diskBlock = entry.inode.findTargetBlock(b * BLOCK_SIZE);
+            if (diskBlock >= 0 && !prefetcher.submit(diskBlock)) {
+                break; //a full queue, try again on the next read
+            }
+            entry.readAheadNext = b + 1; //a hole has nothing to prefetch
         }
     }
 
-    private int recursiveWriteHelper(int length, int writeReturn, FileTableEntry entry, byte[] data) {
-        int targetBlock;//set up a scoped variable to access the target block
-        if (length > 0) {//recursive check
-             targetBlock = entry.inode.findTargetBlock(entry.seekPtr);//set the target block to whatever block the
-            //seek ptr is located in
-            if (targetBlock == -1) {//if the block wasn't found
-                short freeBlock = (short)superblock.getFreeBlock();//get the first free block
-                int registerReturn = entry.inode.registerTargetBlock(entry.seekPtr, freeBlock);//register the target block
-                //using the seek ptr from the entry and the closest free block
-                if (registerReturn == -1) {//if the register was bad
-                    SysLib.cerr("ThreadOS: filesystem panic on write\n");
+    //Positional read: reads from offset into dst and leaves the seek pointer alone, so any number of threads
+    //can read one open file at different offsets at the same time. Returns 0 at or past the end of the file
+    public int pread(FileTableEntry entry, ByteBuffer dst, int offset) {
+        if (offset < 0) {
+            return -1;
+        }
+        entry.inode.lock.readLock().lock(); //no entry monitor, the seek pointer is not touched
+        try {
+            return readAt(entry, offset, dst);
+        } finally {
+            entry.inode.lock.readLock().unlock();
+        }
+    }
+
+    //Writes everything remaining in src at the seek pointer and moves the seek pointer past it
+    public int write(FileTableEntry entry, ByteBuffer src) {
+        return write(entry, new ByteBuffer[]{src});
+    }
+
+    //Gather write: writes the buffers one after another as a single contiguous write
+    public int write(FileTableEntry entry, ByteBuffer[] srcs) {
+        if (entry.mode.equals("r")) {
+            return -1;
+        }
+        if (entry.mode.equals("a")) {
+            return append(entry, srcs);
+        }
+        synchronized (entry) { //the seek pointer and the reservation are shared by every thread using this entry
+            entry.inode.lock.writeLock().lock();
+            try {
+                int total = 0;
+                for (int i = 0; i < srcs.length; i++) {
+                    int n = writeAt(entry, entry.seekPtr, srcs[i]);
+                    if (n < 0) {
+                        return -1;
+                    }
+                    entry.seekPtr += n;
+                    total += n;
+                }
+                return total;
+            } finally {
+                entry.inode.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    //Positional write: writes src at offset without moving the seek pointer. An offset past the end of the file
+    //leaves a hole between the old end and offset. Fails on an entry opened "r" or "a": every write through an
+    //append entry goes to the end of the file, and one at any other offset would break that
+    public int pwrite(FileTableEntry entry, ByteBuffer src, int offset) {
+        if (entry.mode.equals("r") || entry.mode.equals("a") || offset < 0) {
+            return -1;
+        }
+        synchronized (entry) { //the reservation is shared by every thread using this entry, and close gives it back
+            entry.inode.lock.writeLock().lock();
+            try {
+                return writeAt(entry, offset, src);
+            } finally {
+                entry.inode.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    //Copies file bytes starting at position into dst until dst is full or the file ends, one cached block at a
+    //time, with zeros for holes. The caller holds the inode's read lock. Returns the number of bytes copied
+    private int readAt(FileTableEntry entry, int position, ByteBuffer dst) {
+        int done = 0;
+        int fileLength = entry.inode.length;
+        if (entry.inode.inlineData != null) { //a small file, its data came in with the inode
+            done = Math.max(0, Math.min(dst.remaining(), fileLength - position));
+            if (done > 0) {
+                dst.put(entry.inode.inlineData, position, done);
+            }
+            return done;
+        }
+        while (dst.hasRemaining() && position < fileLength) {
+            int targetBlock = entry.inode.findTargetBlock(position);
+            int blockLoc = position % BLOCK_SIZE;
+            int min = Math.min(Math.min(BLOCK_SIZE - blockLoc, dst.remaining()), fileLength - position);
+            if (targetBlock < 0) { //never written, a hole
+                dst.put(ZERO_BLOCK, 0, min);
+            } else {
+                cache.read(targetBlock, blockLoc, dst, min);
+            }
+            position += min;
+            done += min;
+        }
+        return done;
+    }
+
+    //Copies everything remaining in src into the file starting at position, allocating blocks as the file grows.
+    //The caller holds the inode's write lock. Returns the number of bytes written, or -1 if the disk filled up
+    private int writeAt(FileTableEntry entry, int position, ByteBuffer src) {
+        int place = placeWrite(entry, position, src.remaining());
+        if (place < 0) {
+            return -1;
+        }
+        if (place == IN_INODE) {
+            int count = src.remaining();
+            src.get(entry.inode.inlineData, position, count);
+            entry.inode.length = Math.max(entry.inode.length, position + count);
+            inodes.markDirty(entry.iNumber);
+            return count;
+        }
+        int done = 0;
+        while (src.hasRemaining()) {
+            int targetBlock = entry.inode.findTargetBlock(position);
+            boolean freshBlock = false;
+            if (targetBlock < 0) {
+                targetBlock = mapNewBlock(entry, position);
+                if (targetBlock < 0) {
+                    done = -1;
+                    break;
+                }
+                freshBlock = true;
+            }
+            int blockLoc = position % BLOCK_SIZE;
+            int min = Math.min(BLOCK_SIZE - blockLoc, src.remaining());
+            cache.write(targetBlock, blockLoc, src, min, freshBlock);
+            position += min;
+            done += min;
+            if (position > entry.inode.length) {
+                entry.inode.length = position;
+            }
+        }
+        inodes.markDirty(entry.iNumber); //same bookkeeping as the end of a byte[] write
+        return done;
+    }
+
+    //Copies data into the file at the seek pointer one block at a time, allocating blocks as the file grows, and
+    //moves the seek pointer past it. Like readBlocks it loops over this thread's scratch block instead of
+    //recursing with a new one per block. The caller holds the inode's write lock. Returns the number of bytes
+    //written, or -1 if the disk filled up
+    private int writeBlocks(FileTableEntry entry, byte[] data) {
+        int place = placeWrite(entry, entry.seekPtr, data.length);
+        if (place < 0) {
+            return -1;
+        }
+        if (place == IN_INODE) {
+            System.arraycopy(data, 0, entry.inode.inlineData, entry.seekPtr, data.length);
+            entry.seekPtr += data.length;
+            entry.inode.length = Math.max(entry.inode.length, entry.seekPtr);
+            inodes.markDirty(entry.iNumber);
+            return data.length;
+        }
+        byte[] toDisk = scratchBlock.get();
+        int writeReturn = 0;
+        while (writeReturn < data.length) {
+            boolean freshBlock = false; //true when the block was just allocated, so its old contents are meaningless
+            int targetBlock = entry.inode.findTargetBlock(entry.seekPtr);
+            if (targetBlock == -1) { //not mapped yet, allocate and register a block at the seek ptr
+                targetBlock = mapNewBlock(entry, entry.seekPtr);
+                if (targetBlock < 0) {
                     return -1;
                 }
-                else if (registerReturn == -3) {//if the register could've been possibly bad
-                    short nextFreeBlock = (short)superblock.getFreeBlock();//get the next free block again
-                    //means it tried to access an indirect block that hadn't been set properly
-                    //so it tried again
-                    //if it didn't work again, notify a panic state
-                    if (!entry.inode.registerIndexBlock(nextFreeBlock) || entry.inode.registerTargetBlock(entry.seekPtr, freeBlock) != 0) {
-                        SysLib.cerr("ThreadOS: panic on write\n");
+                freshBlock = true;
+            }
+            writeReturn += minAndWriteHelper(targetBlock, toDisk, freshBlock, data.length - writeReturn, data,
+                    writeReturn, entry);
+        }
+        //mark the shared inode dirty so sync stages it, index blocks included
+        inodes.markDirty(entry.iNumber);
+        return writeReturn;
+    }
+
+    //Decides where a write of count bytes at position goes. On a version 3 disk an empty regular file takes its
+    //first write into the inode's inline data when it fits there, and stays inline as long as writes keep within
+    //it. A write that would outgrow an inline file first moves the data out to a block of its own, after which the
+    //file is an ordinary one for good. Directories always keep their data in blocks, they are written to the disk
+    //as metadata block by block. Returns IN_INODE, IN_BLOCKS, or -1 if the data could not be moved out because the
+    //disk is full. The caller holds the inode's write lock
+    private int placeWrite(FileTableEntry entry, int position, int count) {
+        Inode inode = entry.inode;
+        long end = (long)position + count;
+        if (count == 0) {
+            return IN_BLOCKS; //nothing to copy, the block path does nothing
+        }
+        if (inode.inlineData == null) {
+            if (end > Inode.inlineCapacity(inode.version) || inode.length != 0 || inode.hasBlocks()
+                    || entry.iNumber == 0 || inode.flag == Inode.DIRECTORY) {
+                return IN_BLOCKS;
+            }
+            inode.inlineData = new byte[Inode.inlineCapacity(inode.version)];
+            return IN_INODE;
+        }
+        if (end <= inode.inlineData.length) {
+            return IN_INODE;
+        }
+        return promoteInline(entry) ? IN_BLOCKS : -1;
+    }
+
+    //Moves an inline file's data into a newly allocated first block, zeros past the end, and drops the inline
+    //copy. Returns false, leaving the file inline, if no block is free. The caller holds the inode's write lock
+    private boolean promoteInline(FileTableEntry entry) {
+        Inode inode = entry.inode;
+        int block = mapNewBlock(entry, 0);
+        if (block < 0) {
+            return false;
+        }
+        byte[] toDisk = scratchBlock.get();
+        System.arraycopy(inode.inlineData, 0, toDisk, 0, inode.inlineData.length);
+        Arrays.fill(toDisk, inode.inlineData.length, BLOCK_SIZE, (byte)0);
+        cache.write(block, toDisk);
+        inode.inlineData = null;
+        inodes.markDirty(entry.iNumber);
+        return true;
+    }
+
+    //O_APPEND write for entries opened with "a": the data lands at the end of the file as it is when the write
+    //happens, in one piece, however many threads append to the file at once. Each appender reserves its range at
+    //the end with a CAS (reserveAppend) and copies into it under the shared read lock, alongside the others; ranges
+    //become part of the file in the order they were reserved, so a reader never sees one still being filled in.
+    //The seek pointer is left at the end of what was written
+    private int append(FileTableEntry entry, ByteBuffer[] srcs) {
+        long total = 0;
+        for (int i = 0; i < srcs.length; i++) {
+            total += srcs[i].remaining();
+        }
+        Inode inode = entry.inode;
+        while (true) {
+            if (inode.inlineData != null) { //appenders share blocks, not the inline data, move it out first
+                inode.lock.writeLock().lock();
+                try {
+                    if (inode.inlineData != null && !promoteInline(entry)) {
                         return -1;
-                    } else {//otherwise, the second time the register was good
-                        targetBlock = freeBlock;
                     }
-                } else {//the register was good
-                    targetBlock = freeBlock;
+                } finally {
+                    inode.lock.writeLock().unlock();
                 }
+            }
+            inode.lock.readLock().lock(); //appenders run side by side, ordinary writes and truncation wait
+            if (inode.inlineData == null) {
+                break;
+            }
+            inode.lock.readLock().unlock(); //emptied and written inline again in between, rare
+        }
+        int start;
+        int position;
+        try {
+            start = reserveAppend(inode, total);
+            if (start < 0) {
+                return -1;
+            }
+            position = start;
+            for (int i = 0; i < srcs.length; i++) {
+                while (srcs[i].hasRemaining()) {
+                    int blockLoc = position % BLOCK_SIZE;
+                    int min = Math.min(BLOCK_SIZE - blockLoc, srcs[i].remaining());
+                    //mapped and zeroed by reserveAppend, and the bytes of the block outside this range belong to
+                    //other appenders, so only this range is copied into the cached block
+                    cache.write(inode.findTargetBlock(position), blockLoc, srcs[i], min, false);
+                    position += min;
+                }
+            }
+            for (int spins = 0; inode.length != start && spins < APPEND_SPINS; spins++) {
+                Thread.yield(); //an earlier reservation is still being copied, usually only for a moment
+            }
+            synchronized (inode.appendLock) {
+                while (inode.length != start) {
+                    try {
+                        inode.appendLock.wait();
+                    } catch (InterruptedException e) {
+                        //the range is written, it has to be published anyway
+                    }
+                }
+                inode.length = position;
+                inode.appendLock.notifyAll();
+            }
+            inodes.markDirty(entry.iNumber);
+        } finally {
+            inode.lock.readLock().unlock();
+        }
+        synchronized (entry) { //readers and seekers take the entry monitor before the inode lock, never after it
+            entry.seekPtr = position;
+        }
+        return position - start;
+    }
+
+    //Reserves count bytes at the end of the file for an appender and returns where they start, -1 if the file
+    //cannot grow that much. A range that fits in blocks already mapped for appenders takes one CAS; otherwise the
+    //blocks are mapped first, under the inode's appendLock, together with APPEND_MAP_AHEAD more. The caller holds
+    //the read lock
+    private int reserveAppend(Inode inode, long count) {
+        while (true) {
+            int start = inode.appendEnd.get();
+            if (start < inode.length) { //an ordinary write grew the file since the last append
+                inode.appendEnd.compareAndSet(start, inode.length);
+                continue;
+            }
+            long end = start + count;
+            if (end > Integer.MAX_VALUE) {
+                return -1;
+            }
+            if (end <= inode.appendMapped) {
+                if (inode.appendEnd.compareAndSet(start, (int)end)) {
+                    return start;
+                }
+                continue; //another appender got there first
+            }
+            synchronized (inode.appendLock) {
+                if (end > inode.appendMapped && !mapForAppend(inode, inode.appendEnd.get(), end)) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    //Maps every file block from from up to end that has no disk block yet, plus up to APPEND_MAP_AHEAD blocks past
+    //end, and moves appendMapped up to the last of them. A new block is zeroed in the cache right away: appenders
+    //fill it piece by piece and none of them may start from what a previous owner left on disk. Blocks come
+    //from right after the file's previous block when that is free. Mapping ahead stops at a missing index block,
+    //so the tail releaseAppendTail gives back never leaves an index block behind. Returns false if the blocks up
+    //to end cannot all be mapped. The caller holds appendLock
+    private boolean mapForAppend(Inode inode, int from, long end) {
+        long required = (end + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+        //never past the last whole block an int offset can reach, so position below cannot wrap around
+        long limit = Math.min(required + (long)APPEND_MAP_AHEAD * BLOCK_SIZE,
+                Integer.MAX_VALUE / BLOCK_SIZE * BLOCK_SIZE);
+        int position = from / BLOCK_SIZE * BLOCK_SIZE;
+        for (; position < limit; position += BLOCK_SIZE) {
+            if (inode.findTargetBlock(position) >= 0) {
+                continue;
+            }
+            int previous = (position >= BLOCK_SIZE) ? inode.findTargetBlock(position - BLOCK_SIZE) : -1;
+            int freeBlock = superblock.getFreeBlock(previous + 1);
+            if (freeBlock >= 0 && position >= required && inode.registerTargetBlock(position, freeBlock) != 0) {
+                superblock.returnUnused(freeBlock); //would need an index block, or cannot be mapped at all
+                break;
+            }
+            if (freeBlock < 0 || (position < required && mapBlock(inode, position, freeBlock) < 0)) {
+                if (freeBlock < 0 && position < required) { //running out while mapping ahead is no error
+                    SysLib.cerr("ThreadOS: no free blocks left on write\n");
+                }
+                break; //mapBlock already gave the block back
+            }
+            cache.write(freeBlock, ZERO_BLOCK);
+        }
+        if (position < required) {
+            return false;
+        }
+        inode.appendMapped = position; //every block below it is safe to append to
+        return true;
+    }
+
+    //Gives back the blocks mapped ahead for appenders past the end of the file when an append entry is closed for
+    //the last time, as releaseReservation does for a preallocation window. Appenders of other entries that come
+    //later simply map again. The blocks may already be committed as part of the file, so they are freed only
+    //after the transaction that unmaps them
+    private void releaseAppendTail(FileTableEntry entry) {
+        Inode inode = entry.inode;
+        stageLock.readLock().lock(); //the unmapped inode and its freed blocks go into the same transaction
+        try {
+            inode.lock.writeLock().lock(); //no appender is between reserving and publishing
+            try {
+                synchronized (inode.appendLock) {
+                    int end = (int)(((long)inode.length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE);
+                    if (inode.appendMapped <= end) {
+                        return;
+                    }
+                    for (int position = end; position < inode.appendMapped; position += BLOCK_SIZE) {
+                        int block = inode.unregisterTargetBlock(position);
+                        if (block >= 0) {
+                            superblock.returnBlock(block);
+                        }
+                    }
+                    inode.appendMapped = end;
+                    inodes.markDirty(entry.iNumber);
+                }
+            } finally {
+                inode.lock.writeLock().unlock();
+            }
+        } finally {
+            stageLock.readLock().unlock();
+        }
+    }
+
+    //Allocates a disk block for the file block at position and registers it in the inode, allocating index
+    //blocks too when the path to it through the indirect tree is not complete. Returns the block number, or -1
+    //after reporting why
+    private int mapNewBlock(FileTableEntry entry, int position) {
+        int freeBlock = allocateBlock(entry, position);//get a free block, contiguous with the file if possible
+        if (freeBlock < 0) {//the disk is full
+            SysLib.cerr("ThreadOS: no free blocks left on write\n");
+            return -1;
+        }
+        return mapBlock(entry.inode, position, freeBlock);
+    }
 
+    //Registers the allocated freeBlock as the file block at position, see mapNewBlock
+    private int mapBlock(Inode inode, int position, int freeBlock) {
+        int registerReturn = inode.registerTargetBlock(position, freeBlock);//register the target block
+        //using the position and the closest free block
+        while (registerReturn == -3) {//an index block on the way to the target block hasn't been set yet
+            int indexBlock = superblock.getFreeBlock(freeBlock + 1);//get a block for the index
+            if (indexBlock < 0) {//no room left for the index block, give the data block back
+                superblock.returnUnused(freeBlock);
+                SysLib.cerr("ThreadOS: no free blocks left on write\n");
+                return -1;
+            }
+            //hook the new index block in, then try the target block again, once per missing level
+            if (!inode.registerIndexBlock(position, indexBlock)) {
+                superblock.returnUnused(indexBlock);
+                registerReturn = -1;
+            } else {
+                registerReturn = inode.registerTargetBlock(position, freeBlock);
             }
-            //get the value to step the pointer forward
-            int min = minAndWriteHelper(targetBlock, new byte[512], length, data, writeReturn, entry);
-            //wind the stack and return where the end of file ends up
-            return recursiveWriteHelper(length - min, writeReturn + min, entry, data);
-        } else {//base case
-            //write the entry to disk, and return where the seek ptr ended
-            entry.inode.toDisk(entry.iNumber);
-            return writeReturn;
         }
+        if (registerReturn != 0) {//if the register was bad, e.g. past the largest file the format can map
+            superblock.returnUnused(freeBlock);
+            SysLib.cerr("ThreadOS: filesystem panic on write\n");
+            return -1;
+        }
+        return freeBlock;
+    }
+
+    //Picks the disk block for the file block at position. Write and append entries preallocate a window of
+    //contiguous blocks right after the file's previous block and hand them out one at a time, so a file written
+    //sequentially stays contiguous on disk even when other files are being written or deleted in between
+    private int allocateBlock(FileTableEntry entry, int position) {
+        int goal = 0; //no preference for the first block of a file
+        if (position >= BLOCK_SIZE) {
+            int previous = entry.inode.findTargetBlock(position - BLOCK_SIZE);
+            if (previous >= 0) {
+                goal = previous + 1; //the block right after the previous one keeps the file contiguous
+            }
+        }
+        if (entry.reserveNext < entry.reserveEnd && (goal == 0 || entry.reserveNext == goal)) {
+            return entry.reserveNext++; //the reservation lines up with where the file is growing
+        }
+        releaseReservation(entry); //the reservation no longer lines up, e.g. after a seek
+        int[] start = new int[1];
+        int length = superblock.allocateRun(goal, PREALLOCATION_WINDOW, start);
+        if (length == 0) {
+            return -1;
+        }
+        entry.reserveNext = start[0] + 1;
+        entry.reserveEnd = start[0] + length;
+        return start[0];
+    }
+
+    //Gives the unused part of an entry's preallocation window back to the free space bitmap
+    private void releaseReservation(FileTableEntry entry) {
+        while (entry.reserveNext < entry.reserveEnd) {
+            superblock.returnUnused(entry.reserveNext++);
+        }
+        entry.reserveNext = entry.reserveEnd = 0;
     }
-    //Method that helps the recursive helper by copying data from the data array into a temporary storgae and then
-    //writing that to the disk, while being sure to increment the seekptr and return the resulting min value
-    private int minAndWriteHelper(int targetBlock, byte[] toDisk, int length, byte[] data, int writeReturn, FileTableEntry entry) {
-        if (SysLib.rawread(targetBlock, toDisk) == -1) { //Call a system exit if the rawread fails
-            System.exit(2);
+
+    //Method that helps writeBlocks by copying data from the data array into a temporary storgae and then
+    //writing that to the disk, while being sure to increment the seekptr and return the resulting min value.
+    //The old block contents are only read when part of them survives the write: a block-aligned full overwrite
+    //needs nothing from disk, and a freshly allocated block is started from zeros
+    private int minAndWriteHelper(int targetBlock, byte[] toDisk, boolean freshBlock, int length, byte[] data, int writeReturn, FileTableEntry entry) {
+        int blockLoc = entry.seekPtr % BLOCK_SIZE; //Get the block number that the pointer is in
+        int min = Math.min(BLOCK_SIZE - blockLoc, length); //See if the pointer location is less than the length, assign whatever is less
+        if (min < BLOCK_SIZE) { //Partial block, keep the bytes around the written range
+            if (freshBlock) {
+                Arrays.fill(toDisk, (byte)0);
+            } else if (SysLib.cread(targetBlock, toDisk) == -1) { //Call a system exit if the cached read fails
+                System.exit(2);
+            }
         }
-        int blockLoc = entry.seekPtr % 512; //Get the block number that the pointer is in
-        int min = Math.min(512 - blockLoc, length); //See if the pointer location is less than the length, assign whatever is less
         System.arraycopy(data, writeReturn, toDisk, blockLoc, min); //Copy the data from the data array to the byte array for temporary storage
-        SysLib.rawwrite(targetBlock, toDisk); //Write the temporary storage data to disk at the target block
+        SysLib.cwrite(targetBlock, toDisk); //Write the temporary storage data to disk at the target block
         entry.seekPtr += min; //Increment the seek pointer
         if (entry.seekPtr > entry.inode.length) { //Assign the inode length to the seekptr if seekptr is greater
             entry.inode.length = entry.seekPtr;
@@ -178,94 +941,168 @@ public class FileSystem {
         return min; //return the resulting min value
     }
 
-    private boolean deallocAllBlocks(FileTableEntry entry) {
+    //Empties the file. In the background case the indirect trees are only detached, in constant time, and left to
+    //the Reclaimer; otherwise, as inside a commit, they are walked and freed right here. The caller holds the
+    //inode's write lock
+    private boolean deallocAllBlocks(FileTableEntry entry, boolean background) {
         if(entry.inode.count != 1) { //Don't deallocate if more entries are pointing to this
             return false; //And return false
+        }
+        int[] roots = null;
+        if (background) {
+            roots = entry.inode.detachIndexBlocks();
         } else {
-            //Otherwise unregister the index block and store it in a byte array
-            byte[] unregisteredIndexBlock = entry.inode.unregisterIndexBlock();
-            //If the byte array isn't null
-            if(unregisteredIndexBlock != null) {
-                short blockLoc;
-                //While there is more  deallocations to occur within the blocks
-                while((blockLoc = SysLib.bytes2short(unregisteredIndexBlock, 0)) != -1) {
-                    //deallocate the blocks
-                    superblock.returnBlock(blockLoc);
-                }
+            //Unregister the whole indirect tree, data blocks and index blocks alike
+            int[] unregisteredIndexBlocks = entry.inode.unregisterIndexBlocks();
+            if (unregisteredIndexBlocks != null) {
+                //Return every block they point to, and the index blocks themselves, in one batch
+                superblock.returnBlocks(unregisteredIndexBlocks);
             }
-            //Return the result of the recursive helper (true)
-            return deallocRecursiveHelper(0, entry);
         }
-    }
-
-    private boolean deallocRecursiveHelper(int directAccess, FileTableEntry entry){
-        if (directAccess >= 11) { //If we have finished all direct access
-            //Write to disk and return true
-            entry.inode.toDisk(entry.iNumber);
-            return true;
+        //Then every direct block
+        for (int i = 0; i < entry.inode.direct.length; i++) {
+            if (entry.inode.direct[i] != -1) {
+                superblock.returnBlock(entry.inode.direct[i]);
+                entry.inode.direct[i] = -1;
+            }
         }
-        //If the directAccess index is not already deallocated
-        if(entry.inode.direct[directAccess] != -1) {
-            //Deallocate the block
-            superblock.returnBlock(entry.inode.direct[directAccess]);
-            //Set the index to -1
-            entry.inode.direct[directAccess] = -1;
+        //The file is now empty, mark the inode dirty so sync writes it back. This comes before the orphan is
+        //recorded, so any commit that stages the orphan also stages the inode that no longer points at it
+        entry.inode.length = 0;
+        entry.inode.inlineData = null; //an inline file has nothing else to free
+        entry.inode.resetAppend();
+        inodes.markDirty(entry.iNumber);
+        if (roots != null && !reclaimer.submit(roots)) {
+            superblock.returnBlocks(Inode.detachedBlocks(roots, superblock.version, superblock.journal)); //list full
         }
-        //Recursive call with incrementing directAccess
-        return deallocRecursiveHelper(++directAccess, entry);
+        return true;
     }
 
     public boolean delete(String filename) {
         //Open the file to be deleted
         FileTableEntry deleteEntry = open(filename, "w");
+        if (deleteEntry == null) { //the file is still open somewhere else
+            return false;
+        }
         //Get the inumber of the entry to be deleted
         short iNum = deleteEntry.iNumber;
         //Return true if the entry can be closed and completely freed
-        return (close(deleteEntry) && directory.ifree(iNum));
+        return (close(deleteEntry) && tree.remove(filename, iNum));
+    }
+
+    //Creates an empty directory, its parent must exist. Returns false if the name is taken or no inode is left
+    public boolean mkdir(String path) {
+        return tree.create(path, true) >= 0;
     }
 
+    //Removes an empty directory
+    public boolean rmdir(String path) {
+        stageLock.readLock().lock(); //before the tree monitor, which commit takes after it
+        try {
+            synchronized (tree) { //nothing can be created in it between the check and the removal
+                short iNum = tree.lookup(path);
+                if (iNum <= 0 || !tree.isDirectory(iNum) || !tree.isEmpty(iNum)) {
+                    return false;
+                }
+                FileTableEntry entry = filetable.falloc(iNum, "w");
+                entry.inode.lock.writeLock().lock();
+                try {
+                    deallocAllBlocks(entry, true); //give the directory file's blocks back
+                } finally {
+                    entry.inode.lock.writeLock().unlock();
+                }
+                return close(entry) && tree.remove(path, iNum);
+            }
+        } finally {
+            stageLock.readLock().unlock();
+        }
+    }
+
+    //The names in the directory at path, null if there is no such directory
+    public String[] readdir(String path) {
+        return tree.list(path);
+    }
+
+    //Moves the seek pointer and returns where it ended up. It may go past the end of the file, the next write
+    //there leaves a hole. SEEK_DATA and SEEK_HOLE return -1 when offset is not inside the file, or there is no
+    //data after it, and leave the pointer where it was
     public int seek(FileTableEntry entry, int offset, int whence) {
-        if (whence == SEEK_SET) { //If whence is 0
-            //Check to see if the offset is less than 0, and set the seekptr to 0 if so
-            if (offset < 0) {
-                entry.seekPtr = 0;
-                return entry.seekPtr; //return the seekptr
-                //If the offset is greater than the file size, set the seekptr to filesize
-            } else if (offset > fsize(entry)) {
-                entry.seekPtr = fsize(entry);
-                return entry.seekPtr; //return seekptr
+        synchronized (entry) { //the seek pointer is shared by every thread using this entry
+            int seekPtr;
+            if (whence == SEEK_DATA || whence == SEEK_HOLE) {
+                entry.inode.lock.readLock().lock(); //the block map must not change under the search
+                try {
+                    seekPtr = seekHole(entry, offset, whence == SEEK_DATA);
+                } finally {
+                    entry.inode.lock.readLock().unlock();
+                }
+                if (seekPtr < 0) {
+                    return -1;
+                }
+                entry.seekPtr = seekPtr;
             } else {
-                entry.seekPtr = offset; //Otherwise set the seekptr to offset and return
-                return entry.seekPtr;
+                seekPtr = seekHelper(entry, offset, whence);
             }
-        } else if (whence == SEEK_CUR) { //If whence is 1
-            //If the value to be set is less than 0, set the seekptr to 0
-            if (offset + entry.seekPtr < 0) {
-                entry.seekPtr = 0;
-                return entry.seekPtr; //return the seekptr
-                //If the value to be set is greater than file size, set the seekptr to file size
-            } else if (offset + entry.seekPtr > fsize(entry)) {
-                entry.seekPtr = fsize(entry);
-                return entry.seekPtr; //return the seektpr
-            } else {
-                entry.seekPtr += offset; //Otherwise add offset to the seekptr and return
-                return entry.seekPtr;
-            }
-        } else if (whence == SEEK_END) { //If whhence is 2
-            //If the value to be set is less than 0, set the seekptr to 0
-            if (offset + fsize(entry) < 0) {
-                entry.seekPtr = 0;
-                return entry.seekPtr; //return the seekptr
-                //If the value to be set is greater than file size, set the seekptr to file size
-            } else if (offset + fsize(entry) > fsize(entry)) {
-                entry.seekPtr = fsize(entry);
-                return entry.seekPtr; //Return the seekptr
-            } else {
-                entry.seekPtr = offset + fsize(entry); //Set the seekptr to offset + file size
-                return entry.seekPtr; //return the seekpointer
+            if (seekPtr != entry.readAheadOffset) { //the reader jumped, the prefetched window no longer applies
+                entry.readAheadWindow = 0;
+                entry.readAheadNext = 0;
+                entry.readAheadOffset = -1; //the first read after the jump does not count as sequential
             }
+            return seekPtr;
+        }
+    }
+
+    //Moves the seek pointer to offset from the top and reads from there, holding the entry monitor across both so
+    //no other thread's seek lands in between. Returns what read returns, -1 for a negative offset
+    public int seekAndRead(FileTableEntry entry, int offset, byte[] data) {
+        if (offset < 0) {
+            return -1;
+        }
+        synchronized (entry) {
+            seek(entry, offset, SEEK_SET);
+            return read(entry, data);
+        }
+    }
+
+    private int seekHelper(FileTableEntry entry, int offset, int whence) {
+        long target; //in a long, so offset plus the pointer or the size cannot wrap around
+        if (whence == SEEK_SET) { //If whence is 0
+            target = offset;
+        } else if (whence == SEEK_CUR) { //If whence is 1
+            target = (long)entry.seekPtr + offset;
+        } else if (whence == SEEK_END) { //If whence is 2
+            target = (long)fsize(entry) + offset;
         } else {
             return entry.seekPtr; //return the seek pointer
         }
+        //Before the top of the file is clamped to 0; past the end is allowed, up to the largest int
+        entry.seekPtr = (int)Math.max(0, Math.min(target, Integer.MAX_VALUE));
+        return entry.seekPtr;
+    }
+
+    //Where a SEEK_DATA (data true) or SEEK_HOLE search from offset ends, or -1 if offset is outside the file or no
+    //data follows it. Holes are whole unmapped blocks, and the end of the file counts as one. Missing index
+    //subtrees are skipped in one step. The caller holds the inode's read lock
+    private int seekHole(FileTableEntry entry, int offset, boolean data) {
+        int length = fsize(entry);
+        if (offset < 0 || offset >= length) {
+            return -1;
+        }
+        if (entry.inode.inlineData != null) { //all of an inline file is data
+            return data ? offset : length;
+        }
+        int last = (length - 1) / BLOCK_SIZE; //last block of the file
+        int b = offset / BLOCK_SIZE;
+        while (b <= last) {
+            int hole = entry.inode.holeSpan(b);
+            if ((hole == 0) == data) {
+                break;
+            }
+            b += data ? hole : 1;
+        }
+        if (b > last) {
+            return data ? -1 : length;
+        }
+        return (int)Math.min(Math.max((long)b * BLOCK_SIZE, offset), length);
     }
 }
\ No newline at end of file
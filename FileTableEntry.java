@@ -0,0 +1,30 @@
+public class FileTableEntry {          // Each table entry should have
+    public int seekPtr;                 //    a file seek pointer
+    public final Inode inode;           //    a reference to its inode
+    public final short iNumber;         //    this inode number
+    public int count;                   //    # threads sharing this entry
+    public final String mode;           //    "r", "w", "w+", or "a"
+
+    //Blocks preallocated for this entry's upcoming writes, [reserveNext, reserveEnd) are contiguous on disk and
+    //already marked used in the bitmap. Only write and append entries ever hold a reservation.
+    public int reserveNext;
+    public int reserveEnd;
+
+    //Read-ahead state: where a sequential reader would continue, how many blocks ahead of it to prefetch (0 while
+    //the access pattern is not sequential), and the first file block not yet handed to the prefetcher
+    public int readAheadOffset;
+    public int readAheadWindow;
+    public int readAheadNext;
+
+    public FileTableEntry ( Inode i, short inumber, String m ) {
+        seekPtr = 0;             // the seek pointer is set to the file top
+        inode = i;
+        iNumber = inumber;
+        count = 1;               // at least on thread is using this entry
+        mode = m;                // once access mode is set, it never changes
+        reserveNext = reserveEnd = 0; // no blocks reserved until the first write
+        readAheadOffset = readAheadWindow = readAheadNext = 0; // reading from the top counts as sequential
+        if ( mode.compareTo( "a" ) == 0 ) // if mode is append,
+            seekPtr = inode.length;        // seekPtr points to the end of file
+    }
+}
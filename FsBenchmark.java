@@ -0,0 +1,367 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+//Micro-benchmarks for the file system hot paths, run as a plain program against a MemoryBlockDevice so the numbers
+//measure the file system code and not the simulated disk:
+//
+//    java FsBenchmark                  every benchmark
+//    java FsBenchmark read namei       only those whose name contains one of the arguments
+//
+//Each benchmark runs in a JVM of its own unless -Dbench.fork=false, gets a freshly formatted disk, runs
+//-Dbench.warmup untimed iterations and then -Dbench.iterations timed ones of -Dbench.time milliseconds each, on
+//-Dbench.threads threads where it says so, and shuts its file system down again. Reported are the mean
+//throughput with its spread over the timed iterations, the mean time per operation, the disk blocks read and
+//written per operation, and the bytes the benchmark threads allocated per operation (from the JVM's per-thread
+//allocation counter, the same figure a gc profiler reports), which shows whether a hot path makes garbage.
+//The disk-fcfs and disk-cscan benchmarks instead put a DiskScheduler in front of a disk that only costs
+//-Dbench.seek nanoseconds per block of arm travel, and read random blocks through it from every thread; the
+//difference in their throughput is what C-SCAN ordering saves in seeking.
+public class FsBenchmark {
+    private final static int BLOCK_SIZE = 512;
+    private final static int DISK_BLOCKS = Integer.getInteger("bench.blocks", 65536); //32 MB
+    private final static int CACHE_BLOCKS = Integer.getInteger("bench.cache", 256);
+    private final static int FILES = Integer.getInteger("bench.files", 4096);        //inodes on the disk
+    private final static int WARMUP = Integer.getInteger("bench.warmup", 3);
+    private final static int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private final static long ITERATION_MILLIS = Long.getLong("bench.time", 500);
+    private final static int THREADS = Integer.getInteger("bench.threads", 4);
+    private final static long SEEK_NANOS = Long.getLong("bench.seek", 10); //a full stroke of 32 MB is 0.66 ms
+    private final static boolean FORK = !"false".equals(System.getProperty("bench.fork"));
+    private final static boolean CHILD = Boolean.getBoolean("bench.child"); //a fork, runs the one named benchmark
+    private final static com.sun.management.ThreadMXBean THREAD_BEAN =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    //One timed operation, called over and over by every benchmark thread
+    interface Operation {
+        void run(int thread, long n);
+    }
+
+    //Prepares the freshly formatted file system and returns the operation to time
+    interface Setup {
+        Operation prepare(FileSystem fs);
+    }
+
+    private static class Benchmark {
+        final String name;
+        final int threads;
+        final long bytesPerOp;  //for the MB/s column, 0 if not a transfer
+        final Setup setup;
+
+        Benchmark(String name, int threads, long bytesPerOp, Setup setup) {
+            this.name = name;
+            this.threads = threads;
+            this.bytesPerOp = bytesPerOp;
+            this.setup = setup;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("threados.journal.interval") == null) {
+            System.setProperty("threados.journal.interval", "0"); //no background commits in the middle of a run
+        }
+        ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new Benchmark("open-close", 1, 0, fs -> {
+            writeFile(fs, "f", 1024);
+            return (t, n) -> fs.close(fs.open("f", "r"));
+        }));
+        int[] sizes = {4 * 1024, 64 * 1024, 1024 * 1024}; //direct blocks only, one index level, two index levels
+        for (int size : sizes) {
+            benchmarks.add(new Benchmark("seq-write-" + label(size), 1, size, fs -> {
+                byte[] chunk = new byte[4096];
+                int syncEvery = Math.max(1, (DISK_BLOCKS / 8) / (size / BLOCK_SIZE)); //rewrites free blocks on commit
+                return (t, n) -> {
+                    FileTableEntry entry = fs.open("w", "w");
+                    for (int done = 0; done < size; done += chunk.length) {
+                        fs.write(entry, chunk);
+                    }
+                    fs.close(entry);
+                    if (n % syncEvery == syncEvery - 1) {
+                        fs.sync();
+                    }
+                };
+            }));
+            benchmarks.add(new Benchmark("seq-read-" + label(size), 1, size, fs -> {
+                writeFile(fs, "r", size);
+                byte[] chunk = new byte[4096];
+                return (t, n) -> {
+                    FileTableEntry entry = fs.open("r", "r");
+                    while (fs.read(entry, chunk) > 0) {
+                    }
+                    fs.close(entry);
+                };
+            }));
+        }
+        int randomSize = 4 * 1024 * 1024;
+        benchmarks.add(new Benchmark("random-read-" + label(randomSize), 1, BLOCK_SIZE, fs -> {
+            writeFile(fs, "rr", randomSize);
+            FileTableEntry entry = fs.open("rr", "r");
+            byte[] block = new byte[BLOCK_SIZE];
+            return (t, n) -> {
+                fs.seek(entry, ThreadLocalRandom.current().nextInt(randomSize / BLOCK_SIZE) * BLOCK_SIZE, 0);
+                fs.read(entry, block);
+            };
+        }));
+        benchmarks.add(new Benchmark("random-write-" + label(randomSize), 1, BLOCK_SIZE, fs -> {
+            writeFile(fs, "rw", randomSize);
+            FileTableEntry entry = fs.open("rw", "w+"); //overwrites in place, an "a" entry would append
+            byte[] block = new byte[BLOCK_SIZE];
+            return (t, n) -> {
+                fs.seek(entry, ThreadLocalRandom.current().nextInt(randomSize / BLOCK_SIZE) * BLOCK_SIZE, 0);
+                fs.write(entry, block);
+            };
+        }));
+        benchmarks.add(new Benchmark("create-delete", 1, 0, fs -> createDelete(fs)));
+        benchmarks.add(new Benchmark("create-delete-" + THREADS + "t", THREADS, 0, fs -> createDelete(fs)));
+        benchmarks.add(new Benchmark("namei-" + FILES, 1, 0, fs -> {
+            Directory directory = new Directory(FILES);
+            for (int i = 1; i < FILES; i++) {
+                directory.ialloc("file" + i);
+            }
+            String[] names = new String[FILES];
+            for (int i = 0; i < FILES; i++) {
+                names[i] = "file" + i; //file0 does not exist, one lookup in FILES misses
+            }
+            return (t, n) -> directory.namei(names[(int)(n % FILES)]);
+        }));
+        benchmarks.add(new Benchmark("lookup-deep-path", 1, 0, fs -> {
+            String path = "";
+            for (int depth = 0; depth < 16; depth++) {
+                path += "/dir" + depth;
+                fs.mkdir(path);
+            }
+            String file = path + "/leaf";
+            writeFile(fs, file, 16);
+            return (t, n) -> fs.close(fs.open(file, "r"));
+        }));
+        benchmarks.add(new Benchmark("inode-find-block", 1, 0, fs -> {
+            writeFile(fs, "big", randomSize);
+            Inode inode = fs.open("big", "r").inode;
+            return (t, n) -> inode.findTargetBlock(ThreadLocalRandom.current().nextInt(randomSize));
+        }));
+        benchmarks.add(new Benchmark("superblock-alloc-free", 1, 0, fs -> {
+            fs.sync();
+            SuperBlock superblock = new SuperBlock(DISK_BLOCKS); //its own view of the bitmap, never synced
+            return (t, n) -> superblock.returnUnused(superblock.getFreeBlock((int)(n % DISK_BLOCKS)));
+        }));
+        benchmarks.add(new Benchmark("read-shared-" + THREADS + "t", THREADS, 64 * 1024, fs -> {
+            writeFile(fs, "shared", 64 * 1024);
+            byte[][] buffers = new byte[THREADS][64 * 1024];
+            return (t, n) -> {
+                FileTableEntry entry = fs.open("shared", "r");
+                fs.read(entry, buffers[t]);
+                fs.close(entry);
+            };
+        }));
+        benchmarks.add(new Benchmark("read-private-" + THREADS + "t", THREADS, 64 * 1024, fs -> {
+            for (int t = 0; t < THREADS; t++) {
+                writeFile(fs, "private" + t, 64 * 1024);
+            }
+            byte[][] buffers = new byte[THREADS][64 * 1024];
+            return (t, n) -> {
+                FileTableEntry entry = fs.open("private" + t, "r");
+                fs.read(entry, buffers[t]);
+                fs.close(entry);
+            };
+        }));
+        for (int policy : new int[] {DiskScheduler.FCFS, DiskScheduler.CSCAN}) {
+            String name = (policy == DiskScheduler.FCFS) ? "disk-fcfs-" : "disk-cscan-";
+            benchmarks.add(new Benchmark(name + THREADS + "t", THREADS, BLOCK_SIZE, fs -> {
+                DiskScheduler scheduler = new DiskScheduler(new SeekDisk(), new SyncQueue(), policy);
+                scheduler.start();
+                byte[][] buffers = new byte[THREADS][BLOCK_SIZE];
+                return (t, n) -> scheduler.read(ThreadLocalRandom.current().nextInt(DISK_BLOCKS), buffers[t]);
+            }));
+        }
+
+        if (CHILD) {
+            for (Benchmark benchmark : benchmarks) {
+                if (benchmark.name.equals(args[0])) {
+                    run(benchmark);
+                }
+            }
+            return;
+        }
+        System.out.println(String.format(Locale.ROOT, "%-24s %7s %14s %10s %12s %9s %9s %9s %10s",
+                "Benchmark", "Threads", "ops/s", "error", "ns/op", "MB/s", "reads/op", "writes/op", "alloc B/op"));
+        for (Benchmark benchmark : benchmarks) {
+            if (selected(benchmark.name, args)) {
+                if (FORK) {
+                    fork(benchmark.name);
+                } else {
+                    run(benchmark);
+                }
+            }
+        }
+    }
+
+    //Runs one benchmark in a fresh JVM with the same options and class path, which prints its row straight to this
+    //program's output. No JIT profile, heap or thread left over from the benchmarks before it changes its numbers
+    private static void fork(String name) throws Exception {
+        ArrayList<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dbench.child=true");
+        command.add(FsBenchmark.class.getName());
+        command.add(name);
+        int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+        if (status != 0) {
+            System.out.println(String.format(Locale.ROOT, "%-24s failed, exit status %d", name, status));
+        }
+    }
+
+    //The simulated disk with nothing kept but its seek time: an operation spins SEEK_NANOS for every block the arm
+    //travels and completes at once, moving no data, so only the order the scheduler serves requests in shows
+    private static class SeekDisk extends Disk {
+        private int arm;
+
+        SeekDisk() {
+            super(1); //never started, no blocks of its own
+        }
+
+        public synchronized boolean read(int blockId, byte[] buffer) {
+            seek(blockId);
+            return true;
+        }
+
+        public synchronized boolean write(int blockId, byte[] buffer) {
+            seek(blockId);
+            return true;
+        }
+
+        public synchronized boolean sync() {
+            return true;
+        }
+
+        public synchronized boolean testAndResetReady() {
+            return true;
+        }
+
+        private void seek(int blockId) {
+            long end = System.nanoTime() + Math.abs(blockId - arm) * SEEK_NANOS;
+            arm = blockId;
+            while (System.nanoTime() < end) {
+                //the arm is moving
+            }
+        }
+    }
+
+    private static void run(Benchmark benchmark) throws Exception {
+        MemoryBlockDevice device = new MemoryBlockDevice(DISK_BLOCKS, BLOCK_SIZE);
+        FileSystem fs = Kernel.mount(device, DISK_BLOCKS, new Cache(BLOCK_SIZE, CACHE_BLOCKS, new SecondChancePolicy()));
+        fs.format(FILES);
+        Operation operation = benchmark.setup.prepare(fs);
+        long[] allocated = new long[1];
+        for (int i = 0; i < WARMUP; i++) {
+            iteration(benchmark, operation, allocated);
+        }
+        allocated[0] = 0;
+        double[] throughput = new double[ITERATIONS];
+        long ops = 0;
+        long nanos = 0;
+        long reads = device.reads();
+        long writes = device.writes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            long done = iteration(benchmark, operation, allocated);
+            long elapsed = System.nanoTime() - start;
+            throughput[i] = done * 1e9 / elapsed;
+            ops += done;
+            nanos += elapsed;
+        }
+        double mean = 0;
+        for (double x : throughput) {
+            mean += x / ITERATIONS;
+        }
+        double variance = 0;
+        for (double x : throughput) {
+            variance += (x - mean) * (x - mean) / Math.max(1, ITERATIONS - 1);
+        }
+        double nsPerOp = (double)nanos * benchmark.threads / ops; //time each thread spent on one operation
+        String mbPerSecond = (benchmark.bytesPerOp == 0) ? "-"
+                : String.format(Locale.ROOT, "%.1f", mean * benchmark.bytesPerOp / (1024 * 1024));
+        System.out.println(String.format(Locale.ROOT, "%-24s %7d %14.1f %10.1f %12.1f %9s %9.2f %9.2f %10.1f",
+                benchmark.name, benchmark.threads, mean, Math.sqrt(variance), nsPerOp, mbPerSecond,
+                (double)(device.reads() - reads) / ops, (double)(device.writes() - writes) / ops,
+                (double)allocated[0] / ops));
+        fs.shutdown(); //no committer, Prefetcher or Reclaimer of this run is left running into the next one
+    }
+
+    //Runs the operation on every thread for one iteration and returns how many operations completed. The bytes the
+    //threads allocated while running it are added to allocated[0]
+    private static long iteration(Benchmark benchmark, Operation operation, long[] allocated)
+            throws InterruptedException {
+        long[] counts = new long[benchmark.threads];
+        long[] bytes = new long[benchmark.threads];
+        Thread[] threads = new Thread[benchmark.threads];
+        long end = System.nanoTime() + ITERATION_MILLIS * 1000000L;
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(() -> {
+                long id = Thread.currentThread().getId();
+                long before = THREAD_BEAN.getThreadAllocatedBytes(id);
+                long n = 0;
+                while (System.nanoTime() < end) {
+                    operation.run(thread, n++);
+                }
+                bytes[thread] = THREAD_BEAN.getThreadAllocatedBytes(id) - before;
+                counts[thread] = n;
+            });
+            threads[t].start();
+        }
+        long total = 0;
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            total += counts[t];
+            allocated[0] += bytes[t];
+        }
+        return total;
+    }
+
+    //Creates a small file and deletes it again, each thread under its own names. Deleted blocks only come back when
+    //the deletion commits, so every thread syncs now and then
+    private static Operation createDelete(FileSystem fs) {
+        byte[] data = new byte[100];
+        return (t, n) -> {
+            String name = "c" + t + "-" + (n % 64);
+            FileTableEntry entry = fs.open(name, "w");
+            fs.write(entry, data);
+            fs.close(entry);
+            fs.delete(name);
+            if (n % 1024 == 1023) {
+                fs.sync();
+            }
+        };
+    }
+
+    private static void writeFile(FileSystem fs, String name, int size) {
+        FileTableEntry entry = fs.open(name, "w");
+        byte[] chunk = new byte[4096];
+        for (int done = 0; done < size; done += chunk.length) {
+            ThreadLocalRandom.current().nextBytes(chunk);
+            fs.write(entry, chunk);
+        }
+        fs.close(entry);
+        fs.sync();
+    }
+
+    private static String label(int size) {
+        return (size >= 1024 * 1024) ? (size / (1024 * 1024)) + "M" : (size / 1024) + "K";
+    }
+
+    private static boolean selected(String name, String[] filters) {
+        if (filters.length == 0) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (name.contains(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,337 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+//Concurrency stress tests for the file system's locking, run as a plain program against a MemoryBlockDevice the
+//way FsBenchmark is:
+//
+//    java FsStress                     every case
+//    java FsStress append              only those whose name contains one of the arguments
+//
+//Each case starts its threads on a freshly formatted disk and lets them hammer one file for -Dstress.warmup and
+//then -Dstress.time milliseconds, counting operations over the second stretch only. A case fails when the JVM's deadlock detector finds its threads waiting on each other, when they
+//make no progress for -Dstress.stall milliseconds, or when the file they leave behind is not what their operations
+//add up to. The program prints one line per case and exits with status 1 if any of them failed.
+//
+//The mixed cases run the same per-thread workload at 1, 2, 4 and 8 threads, each on a fresh disk, and print the
+//throughput of each step next to that of the single thread.
+public class FsStress {
+    private final static int BLOCK_SIZE = 512;
+    private final static int DISK_BLOCKS = Integer.getInteger("stress.blocks", 65536); //32 MB
+    private final static int CACHE_BLOCKS = Integer.getInteger("stress.cache", 256);
+    private final static int FILES = 64;
+    private final static long RUN_MILLIS = Long.getLong("stress.time", 2000);
+    private final static long WARMUP_MILLIS = Long.getLong("stress.warmup", 1000); //run first, not counted
+    private final static long STALL_MILLIS = Long.getLong("stress.stall", 5000);
+    private final static int FILE_SIZE = 64 * 1024;  //written before the threads start
+    private final static int RECORD = 64;            //bytes per append, all of one value
+    private final static int APPEND_LIMIT = 2 * 1024 * 1024 / RECORD; //appends per thread, well inside the disk
+    private final static int MIXED_APPEND_LIMIT = 16 * 1024 * 1024 / RECORD; //appends per mixed case, all threads
+    private final static int MIXED_APPEND_EVERY = 32; //one call in so many appends, so the limit lasts the run
+    private final static int[] THREAD_COUNTS = {1, 2, 4, 8};
+    private final static ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+    //What one thread does over and over; n counts its calls. Returns false if there was nothing left to do, such
+    //as an append past the case's limit, so the call does not count towards the throughput
+    interface Operation {
+        boolean run(long n);
+    }
+
+    //One stress case: opens what its threads share and returns one operation per thread, then checks the file
+    //once they have stopped, returning what is wrong with it or null
+    private static abstract class Case {
+        final String name;
+        final boolean scaling; //one of several runs of the same workload at different thread counts
+
+        Case(String name) {
+            this(name, false);
+        }
+
+        Case(String name, boolean scaling) {
+            this.name = name;
+            this.scaling = scaling;
+        }
+
+        abstract Operation[] prepare(FileSystem fs);
+
+        abstract String check(FileSystem fs);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("threados.journal.interval") == null) {
+            System.setProperty("threados.journal.interval", "0"); //commits only where a case asks for them
+        }
+        ArrayList<Case> cases = new ArrayList<Case>();
+        //Appenders publish under the inode's read lock, readers and seekers take the entry monitor before it, and a
+        //writer on another entry of the file queues for the write lock. The entry monitor always comes first
+        cases.add(new Case("append-read-write-lock-order") {
+            LongAdder appended = new LongAdder();
+
+            Operation[] prepare(FileSystem fs) {
+                writeFile(fs, "f", FILE_SIZE);
+                FileTableEntry appendEntry = fs.open("f", "a");
+                FileTableEntry[] writeEntries = {fs.open("f", "w+"), fs.open("f", "w+")};
+                ArrayList<Operation> operations = new ArrayList<Operation>();
+                for (int i = 0; i < 2; i++) {
+                    byte[] record = new byte[RECORD];
+                    Arrays.fill(record, (byte)(i + 1));
+                    operations.add(n -> {
+                        if (n >= APPEND_LIMIT || fs.write(appendEntry, record) != RECORD) {
+                            return false;
+                        }
+                        appended.increment();
+                        return true;
+                    });
+                }
+                byte[] readBuffer = new byte[BLOCK_SIZE];
+                operations.add(n -> fs.read(appendEntry, readBuffer) >= 0); //at the end, where the appenders are
+                byte[] seekBuffer = new byte[BLOCK_SIZE];
+                operations.add(n -> fs.seekAndRead(appendEntry, randomBlock(), seekBuffer) >= 0);
+                operations.add(n -> fs.seek(appendEntry, randomBlock(), FileSystem.SEEK_DATA) >= 0);
+                for (FileTableEntry writeEntry : writeEntries) { //one thread per entry, so seek and write pair up
+                    byte[] block = new byte[BLOCK_SIZE];
+                    operations.add(n -> {
+                        fs.seek(writeEntry, randomBlock(), 0);
+                        return fs.write(writeEntry, block) >= 0;
+                    });
+                }
+                return operations.toArray(new Operation[operations.size()]);
+            }
+
+            String check(FileSystem fs) {
+                return checkAppended(fs, "f", FILE_SIZE, appended.sum());
+            }
+        });
+
+        //Every thread cycles through reads and seeks on an entry of its own, in-place writes on another, and an
+        //append on the entry they all share. Readers, seekers and appenders only share the inode's read lock, the
+        //writers queue for its write lock
+        for (int threads : THREAD_COUNTS) {
+            cases.add(mixed("mixed-one-file", threads, true));
+        }
+        //The same with a file per thread, so only the file table, the directory and the allocator are shared
+        for (int threads : THREAD_COUNTS) {
+            cases.add(mixed("mixed-own-files", threads, false));
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%-32s %7s %12s %8s  %s",
+                "Case", "Threads", "ops/s", "scaling", "Result"));
+        HashMap<String, Double> single = new HashMap<String, Double>(); //ops/s of the first run of each workload
+        boolean failed = false;
+        for (Case c : cases) {
+            if (selected(c.name, args)) {
+                double rate = run(c, single.get(c.name));
+                if (rate < 0) {
+                    failed = true;
+                } else if (c.scaling) {
+                    single.putIfAbsent(c.name, rate);
+                }
+            }
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    //The mixed workload on threads threads, on one shared file or on a file per thread
+    private static Case mixed(String name, int threads, boolean oneFile) {
+        return new Case(name, true) {
+            LongAdder[] appended = new LongAdder[oneFile ? 1 : threads];
+
+            Operation[] prepare(FileSystem fs) {
+                Operation[] operations = new Operation[threads];
+                FileTableEntry shared = null;
+                if (oneFile) {
+                    writeFile(fs, "f", FILE_SIZE);
+                    shared = fs.open("f", "a");
+                }
+                long limit = MIXED_APPEND_LIMIT / threads; //at most as much appended whatever the thread count
+                for (int t = 0; t < threads; t++) {
+                    String file = oneFile ? "f" : "f" + t;
+                    if (!oneFile) {
+                        writeFile(fs, file, FILE_SIZE);
+                    }
+                    if (t < appended.length) {
+                        appended[t] = new LongAdder();
+                    }
+                    LongAdder count = appended[oneFile ? 0 : t];
+                    FileTableEntry appendEntry = oneFile ? shared : fs.open(file, "a");
+                    FileTableEntry readEntry = fs.open(file, "r");
+                    FileTableEntry writeEntry = fs.open(file, "w+");
+                    byte[] record = new byte[RECORD];
+                    Arrays.fill(record, (byte)(t + 1));
+                    byte[] readBuffer = new byte[BLOCK_SIZE];
+                    byte[] block = new byte[BLOCK_SIZE];
+                    operations[t] = n -> {
+                        if (n % MIXED_APPEND_EVERY == 0) { //appender
+                            if (n / MIXED_APPEND_EVERY >= limit || fs.write(appendEntry, record) != RECORD) {
+                                return false;
+                            }
+                            count.increment();
+                            return true;
+                        }
+                        switch ((int)(n % 3)) {
+                            case 0: //reader, wherever the seeker left the seek pointer
+                                return fs.read(readEntry, readBuffer) >= 0;
+                            case 1: //writer, inside the prefix so the length is the appenders' alone
+                                fs.seek(writeEntry, randomBlock(), 0);
+                                return fs.write(writeEntry, block) >= 0;
+                            default: //seeker
+                                return fs.seek(readEntry, randomBlock(), FileSystem.SEEK_DATA) >= 0;
+                        }
+                    };
+                }
+                return operations;
+            }
+
+            String check(FileSystem fs) {
+                for (int t = 0; t < appended.length; t++) {
+                    String wrong = checkAppended(fs, oneFile ? "f" : "f" + t, FILE_SIZE, appended[t].sum());
+                    if (wrong != null) {
+                        return wrong;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    //Runs one case and prints its line with its throughput relative to single, the ops/s of the same workload on
+    //one thread, if there is one. Returns its ops/s, or -1 if it failed
+    private static double run(Case c, Double single) throws InterruptedException {
+        MemoryBlockDevice device = new MemoryBlockDevice(DISK_BLOCKS, BLOCK_SIZE);
+        FileSystem fs = Kernel.mount(device, DISK_BLOCKS, new Cache(BLOCK_SIZE, CACHE_BLOCKS, new SecondChancePolicy()));
+        fs.format(FILES);
+        Operation[] operations = c.prepare(fs);
+        LongAdder progress = new LongAdder(); //every call, for the stall watch
+        LongAdder measured = new LongAdder(); //calls that did something after the warmup
+        Thread[] threads = new Thread[operations.length];
+        long started = System.nanoTime() + WARMUP_MILLIS * 1000000L;
+        long end = started + RUN_MILLIS * 1000000L;
+        for (int t = 0; t < threads.length; t++) {
+            Operation operation = operations[t];
+            threads[t] = new Thread(() -> {
+                for (long n = 0, now = System.nanoTime(); now < end; n++, now = System.nanoTime()) {
+                    if (operation.run(n) && now >= started) {
+                        measured.increment();
+                    }
+                    progress.increment();
+                }
+            }, c.name + "-" + t);
+            threads[t].setDaemon(true); //a hung case must not keep the program from exiting
+            threads[t].start();
+        }
+        String result = watch(threads, progress);
+        double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+        if (result == null) {
+            result = c.check(fs);
+            fs.shutdown(); //a hung case keeps its threads, the program exits with them
+        }
+        double rate = measured.sum() / seconds;
+        String scaling = !c.scaling ? "-"
+                : String.format(Locale.ROOT, "%.2fx", (single == null) ? 1.0 : rate / single);
+        System.out.println(String.format(Locale.ROOT, "%-32s %7d %12.1f %8s  %s", c.name, threads.length,
+                rate, scaling, (result == null) ? "ok" : "FAILED: " + result));
+        return (result == null) ? rate : -1;
+    }
+
+    //Waits for the threads to finish, returns null once they have, or why they never will
+    private static String watch(Thread[] threads, LongAdder progress) throws InterruptedException {
+        long last = -1;
+        long lastChange = System.nanoTime();
+        while (true) {
+            boolean alive = false;
+            for (Thread thread : threads) {
+                alive |= thread.isAlive();
+            }
+            if (!alive) {
+                return null;
+            }
+            long[] deadlocked = THREAD_BEAN.findDeadlockedThreads(); //cycles of monitors and write locks
+            if (deadlocked != null) {
+                dump(deadlocked);
+                return "deadlock between " + deadlocked.length + " threads";
+            }
+            long now = progress.sum();
+            if (now != last) {
+                last = now;
+                lastChange = System.nanoTime();
+            } else if (System.nanoTime() - lastChange > STALL_MILLIS * 1000000L) {
+                long[] ids = new long[threads.length]; //a read lock has no owner, so a cycle through one only
+                for (int t = 0; t < threads.length; t++) {   //shows up here
+                    ids[t] = threads[t].getId();
+                }
+                dump(ids);
+                return "no progress for " + STALL_MILLIS + " ms";
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static void dump(long[] ids) {
+        for (ThreadInfo info : THREAD_BEAN.getThreadInfo(ids, true, true)) {
+            if (info != null) {
+                System.out.print(info);
+            }
+        }
+    }
+
+    //The file must be its first prefix bytes followed by count whole records, each all of one nonzero value, in
+    //some order: appends land at the end in one piece and none is lost or torn
+    private static String checkAppended(FileSystem fs, String name, int prefix, long count) {
+        FileTableEntry entry = fs.open(name, "r");
+        try {
+            long expected = prefix + count * RECORD;
+            if (fs.fsize(entry) != expected) {
+                return "length " + fs.fsize(entry) + ", expected " + expected;
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD);
+            for (int offset = prefix; offset < expected; offset += RECORD) {
+                record.clear();
+                fs.pread(entry, record, offset);
+                byte value = record.get(0);
+                for (int i = 0; i < RECORD; i++) {
+                    if (value == 0 || record.get(i) != value) {
+                        return "torn record at " + offset;
+                    }
+                }
+            }
+            return null;
+        } finally {
+            fs.close(entry);
+        }
+    }
+
+    //A random block-aligned offset inside the first FILE_SIZE bytes, where a write never changes the length
+    private static int randomBlock() {
+        return ThreadLocalRandom.current().nextInt(FILE_SIZE / BLOCK_SIZE) * BLOCK_SIZE;
+    }
+
+    private static void writeFile(FileSystem fs, String name, int size) {
+        FileTableEntry entry = fs.open(name, "w");
+        byte[] chunk = new byte[4096];
+        for (int done = 0; done < size; done += chunk.length) {
+            ThreadLocalRandom.current().nextBytes(chunk);
+            fs.write(entry, chunk);
+        }
+        fs.close(entry);
+        fs.sync();
+    }
+
+    private static boolean selected(String name, String[] filters) {
+        if (filters.length == 0) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (name.contains(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+//Decoded index blocks of one file keyed by block number, with int keys so a lookup boxes nothing. Lookups take no
+//lock and never allocate, which keeps them off the per-block read path's garbage; inserts take this object's
+//monitor. The table is open addressing with linear probing. A slot's value is set before its key, so a reader that
+//finds the key also sees the fully decoded index. A full table is replaced by a twice as large copy.
+public class IndexBlockMap {
+    private final static int EMPTY = 0;            //block 0 is the superblock, never an index block
+
+    private static final class Table {
+        final AtomicIntegerArray keys;
+        final AtomicReferenceArray<int[]> values;
+        int size;                                  //only read and written under the map's monitor
+
+        Table(int capacity) {
+            keys = new AtomicIntegerArray(capacity);
+            values = new AtomicReferenceArray<int[]>(capacity);
+        }
+    }
+
+    private volatile Table table = new Table(16);
+
+    //The index decoded from block, null if it is not here
+    public int[] get(int block) {
+        Table t = table;
+        int mask = t.keys.length() - 1;
+        for (int i = hash(block) & mask; ; i = (i + 1) & mask) {
+            int key = t.keys.get(i);
+            if (key == block) {
+                return t.values.get(i);
+            }
+            if (key == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    //Adds index under block unless one is there already, returns the one the map ends up with
+    public synchronized int[] putIfAbsent(int block, int[] index) {
+        int[] present = get(block);
+        if (present != null) {
+            return present;
+        }
+        if ((table.size + 1) * 4 > table.keys.length() * 3) { //keep at least a quarter empty so probes stay short
+            Table bigger = new Table(table.keys.length() * 2);
+            for (int i = 0; i < table.keys.length(); i++) {
+                if (table.keys.get(i) != EMPTY) {
+                    insert(bigger, table.keys.get(i), table.values.get(i));
+                }
+            }
+            table = bigger;
+        }
+        insert(table, block, index);
+        return index;
+    }
+
+    //Replaces whatever is stored under block
+    public synchronized void put(int block, int[] index) {
+        Table t = table;
+        int mask = t.keys.length() - 1;
+        for (int i = hash(block) & mask; t.keys.get(i) != EMPTY; i = (i + 1) & mask) {
+            if (t.keys.get(i) == block) {
+                t.values.set(i, index);
+                return;
+            }
+        }
+        putIfAbsent(block, index);
+    }
+
+    public synchronized void clear() {
+        table = new Table(16);
+    }
+
+    private static void insert(Table t, int block, int[] index) {
+        int mask = t.keys.length() - 1;
+        int i = hash(block) & mask;
+        while (t.keys.get(i) != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        t.values.set(i, index);
+        t.keys.set(i, block);
+        t.size++;
+    }
+
+    //Index blocks of one file are often consecutive block numbers, spread them over the table
+    private static int hash(int block) {
+        int h = block * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
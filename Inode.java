@@ -1,82 +1,180 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 public class Inode {
-    private final static int iNodeSize = 32;       // fix to 32 bytes
+    //On-disk inode formats, the superblock records which one a disk uses. Version 1 is the original 32-byte inode
+    //with 16-bit block numbers and one indirect block. Version 2 is 64 bytes with 32-bit block numbers and single,
+    //double and triple indirect blocks, which lifts the file size cap from 136 KB to about 1 GB. Version 3 is a
+    //version 2 inode widened to 128 bytes: a small file keeps its data in the inode itself, in the bytes after
+    //length, count and flag, where the block pointers of a larger file go
+    public final static int VERSION_1 = 1;
+    public final static int VERSION_2 = 2;
+    public final static int VERSION_3 = 3;
+    public final static int iNodeSize = 32;        // size of a version 1 inode
+    public final static int iNodeSizeV2 = 64;      // size of a version 2 inode
+    public final static int iNodeSizeV3 = 128;     // size of a version 3 inode
+    public final static short DIRECTORY = 2;       // flag of an inode whose data is a Subdirectory
+    private final static short INLINE = 0x100;     // set in the flag on disk when the data is in the inode
+    private final static int HEADER_SIZE = 8;      // length, count and flag come before the pointers or the data
     private final static int directSize = 11;      // # direct pointers
-    private final static int MAX_INODES = 16;
     private final static int MAX_BLOCK_SIZE_BYTES = 512;
     private final static int BYTES_IN_AN_INTEGER = 4;
     private final static int BYTES_IN_A_SHORT = 2;
+    //One block-sized buffer per thread for reading and writing inode and index blocks, so serializing an inode
+    //allocates nothing. Never held across a call that could use it again
+    private final static ThreadLocal<byte[]> scratchBlock =
+            ThreadLocal.withInitial(() -> new byte[MAX_BLOCK_SIZE_BYTES]);
 
-    public int length;                             // file size in bytes
+    public final int version;                      // on-disk format this inode is read from and written as
+    private final Journal journal;                 // inode and index blocks are metadata, written through it
+    public volatile int length;                    // file size in bytes, readable without taking the lock
     public short count;                            // # file-table entries pointing to this
-    public short flag;                             // 0 = unused, 1 = used, ...
-    public short direct[] = new short[directSize]; // direct pointers
-    public short indirect;                         // a indirect pointer
+    public short flag;                             // 0 = unused, 1 = used, DIRECTORY = a subdirectory
+    public int direct[] = new int[directSize];     // direct pointers
+    public int indirect;                           // a single indirect pointer
+    public int doubleIndirect;                     // index of index blocks, version 2 only
+    public int tripleIndirect;                     // three levels of index blocks, version 2 only
+    public byte[] inlineData;                      // the file's data when it is kept in the inode, else null
+
+    //Decoded index blocks of this file by block number, filled the first time a lookup walks through them
+    private final IndexBlockMap indexBlocks = new IndexBlockMap();
+    private final HashSet<Integer> dirtyIndexBlocks = new HashSet<Integer>(); // changed since the last flushIndex
+    private int lastDirtyIndex = -1;               // last block added there, a sequential write adds it only once
+
+    // Readers of the file share the lock, writers and truncation take it exclusively. In memory only.
+    public final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    public volatile boolean dirty;                 // true if the in-core inode has to be written back
+
+    // Appends ("a" entries) run under the read lock, side by side. Each one reserves its byte range by moving
+    // appendEnd past it with a CAS, as long as the range ends before appendMapped, up to where blocks are mapped
+    // (and zeroed) for appenders already. Mapping more, and publishing a finished range as the new length, happens
+    // under appendLock, which also keeps sync from serializing the block pointers while an appender changes them
+    public final AtomicInteger appendEnd = new AtomicInteger();
+    public volatile int appendMapped;
+    public final Object appendLock = new Object();
 
-    public Inode( ) {                                     // a default constructor
+    public Inode( int version, Journal journal ) {        // a default constructor
+        this.version = version;
+        this.journal = journal;
         length = 0;
         count = 0;
         flag = 1;
         for (int i = 0; i < directSize; i++) { direct[i] = -1; }
-        indirect = -1;
+        indirect = doubleIndirect = tripleIndirect = -1;
     }
 
     //Method which will initialize an Inode object from the disk by reading from various blocks into a byte array
     //and setting specific values initially determined by the given iNumber as an argument
-    public Inode( short iNumber ) {                            // retrieving inode from disk
-        int block = (1 + (iNumber / MAX_INODES));       //Determine which block number the given iNumber is in
-        byte[] data = new byte[MAX_BLOCK_SIZE_BYTES];              //Each block on disk contains 512 bytes
-        SysLib.rawread(block, data);                    //Read the data from the given block into the byte array
-        int offset = (iNumber % MAX_INODES) * iNodeSize; //Initialize the offset as the start of where to operate
+    public Inode( short iNumber, int version, Journal journal ) { // retrieving inode from disk
+        this.version = version;
+        this.journal = journal;
+        int block = (1 + (iNumber / perBlock(version)));  //Determine which block number the given iNumber is in
+        byte[] data = scratchBlock.get();              //Each block on disk contains 512 bytes
+        journal.read(block, data);                    //Read the newest copy of the block into the byte array
+        int offset = (iNumber % perBlock(version)) * size(version); //Initialize the offset as the start of where to operate
         length = SysLib.bytes2int(data, offset);  //rearrange the 4 bytes into a single integer by adding them together
         offset += BYTES_IN_AN_INTEGER;            //add to the offset the number of bytes in an integer to move forward
         count = SysLib.bytes2short(data, offset); //rearrange the 2 bytes into a single short from the offset
         offset += BYTES_IN_A_SHORT;               //add to the offset the number of bytes in a short to move forward
         flag = SysLib.bytes2short(data, offset);  //set the flag by rearranging the bytes into a short
         offset += BYTES_IN_A_SHORT;               //add to the offset and move forward by a short
-        //we have already moved 8 bytes, time to move forward
-        //for the remaining 22 bytes to get use to 30 bytes and fill up the actual material for the first 11
-        //which are direct blocks
+        if (version == VERSION_3 && (flag & INLINE) != 0) {
+            //a small file, its data came in with the inode block and no pointer is in use
+            flag &= ~INLINE;
+            inlineData = new byte[inlineCapacity(version)];
+            System.arraycopy(data, offset, inlineData, 0, inlineData.length);
+            for (int i = 0; i < directSize; i++) { direct[i] = -1; }
+            indirect = doubleIndirect = tripleIndirect = -1;
+            return;
+        }
+        //we have already moved 8 bytes, the rest are the block pointers: 11 direct and the indirect ones
+        for (int i = 0; i < directSize; i++) {
+            direct[i] = readPointer(data, offset);
+            //move the offset forward one pointer at a time
+            offset += pointerSize();
+        }
+        //now the indirect pointers, a version 1 inode only has the single one
+        indirect = readPointer(data, offset);
+        offset += pointerSize();
+        if (version == VERSION_1) {
+            doubleIndirect = tripleIndirect = -1;
+        } else {
+            doubleIndirect = readPointer(data, offset);
+            offset += pointerSize();
+            tripleIndirect = readPointer(data, offset);
+        }
+    }
+
+    //Bytes taken by one inode of the given format
+    public static int size( int version ) {
+        return (version == VERSION_1) ? iNodeSize : (version == VERSION_2) ? iNodeSizeV2 : iNodeSizeV3;
+    }
+
+    //Largest file whose data the given format keeps in the inode, 0 if it never does
+    public static int inlineCapacity( int version ) {
+        return (version == VERSION_3) ? iNodeSizeV3 - HEADER_SIZE : 0;
+    }
+
+    //True if any block pointer is set. A file can be empty and still have blocks, e.g. mapped ahead by appenders
+    public boolean hasBlocks() {
         for (int i = 0; i < directSize; i++) {
-            direct[i] = SysLib.bytes2short(data, offset);
-            //move the offset forward 2 bytes at a time
-            offset += BYTES_IN_A_SHORT;
+            if (direct[i] >= 0) {
+                return true;
+            }
         }
-        //now move to the indirect block to point the offset to the end
-        indirect = SysLib.bytes2short(data, offset);
-        //increment the offset to point at the indirect block
-        offset += BYTES_IN_A_SHORT;
+        return indirect >= 0 || doubleIndirect >= 0 || tripleIndirect >= 0;
+    }
+
+    //Inodes stored in one block with the given format
+    public static int perBlock( int version ) {
+        return MAX_BLOCK_SIZE_BYTES / size(version);
     }
 
     public int toDisk( short iNumber ) {            // save to disk as the i-th inode
-        byte[] data = new byte[iNodeSize];         //initialize the byte array to read one whole iNode
-        int offset = 0;                            //start the offset to operate from
+        //The following ensures there is no inconsistency among different user threads of any iNode
+        //The iNode is read from the disk, and then write its contents back immediately
+        int block = (1 + (iNumber / perBlock(version)));  //Determine which block number the given iNumber is in
+        byte[] actualData = scratchBlock.get(); //Each block on disk contains 512 bytes, this will contain
+        //the actual data
+        journal.read(block, actualData);              //Now read the iNode from disk into the byte array to prevent
+        //writing to an iNode while another thread is reading from it
+        toBytes(actualData, (iNumber % perBlock(version)) * size(version)); //serialize this inode over its slot
+        journal.write(block, actualData);         //write the iNode information to disk now that it has been updated
+        return 0;
+    }
+
+    //Serializes this inode into data starting at offset, used by toDisk and by the InodeTable which patches
+    //several inodes of the same block before writing it once
+    public void toBytes( byte[] data, int offset ) {
+        int end = offset + size(version);           //where the next inode's slot starts
         SysLib.int2bytes(length, data, offset);     //convert length back into a byte and store it in data
         offset += BYTES_IN_AN_INTEGER;              //add to the offset the number of bytes in an integer
         SysLib.short2bytes(count, data, offset);    //convert count back into a byte and store it in data
         offset += BYTES_IN_A_SHORT;                 //add to the offset the number of bytes in a short
-        SysLib.short2bytes(flag, data, offset);     //convert flag back into a byte and store it in data
+        //convert flag back into a byte and store it in data, marked when the data follows in place of the pointers
+        SysLib.short2bytes((short)((inlineData != null) ? flag | INLINE : flag), data, offset);
         offset += BYTES_IN_A_SHORT;                 //add to the offset the number of bytes in a short
-        //Loop through the direct blocks converting them to bytes and storing them in data and incrementing offset
-        //by the next 22 bytes to get to 30 byes
+        if (inlineData != null) {
+            System.arraycopy(inlineData, 0, data, offset, inlineData.length);
+            return;
+        }
+        //Loop through the direct blocks converting them to bytes and storing them in data
         for (int i = 0; i < directSize; i++) {
-            SysLib.short2bytes(direct[i], data, offset);
-            offset += BYTES_IN_A_SHORT;
+            writePointer(direct[i], data, offset);
+            offset += pointerSize();
         }
-        SysLib.short2bytes(indirect, data, offset); //convert indirect block into bytes and store it in data
-        offset += BYTES_IN_A_SHORT;                 //add to the offset the number of bytes in a short, now at 32 bytes
-        //The following ensures there is no inconsistency among different user threads of any iNode
-        //The iNode is read from the disk, and then write its contents back immediately
-        int block = (1 + (iNumber / MAX_INODES));       //Determine which block number the given iNumber is in
-        //inumber / maxinodes(16) to get to the block index
-        byte[] actualData = new byte[MAX_BLOCK_SIZE_BYTES]; //Each block on disk contains 512 bytes, this will contain
-        //the actual data
-        SysLib.rawread(block, actualData);              //Now read the iNode from disk into the byte array to prevent
-        //writing to an iNode while another thread is reading from it
-        offset = (iNumber % MAX_INODES) * iNodeSize; //Initialize the offset as the start of where to operate
-        System.arraycopy(data, 0, actualData, offset, iNodeSize); //copy the information from initial data into the
-        //actual data byte array
-        SysLib.rawwrite(block, actualData);         //write the iNode information to disk now that it has been updated
-        return 0;
+        writePointer(indirect, data, offset);       //convert indirect block into bytes and store it in data
+        offset += pointerSize();
+        if (version != VERSION_1) {
+            writePointer(doubleIndirect, data, offset);
+            offset += pointerSize();
+            writePointer(tripleIndirect, data, offset);
+            offset += pointerSize();
+        }
+        Arrays.fill(data, offset, end, (byte)0); //a version 3 slot may still hold data the file had inline
     }
 
     //finds the index of the desired block from the given seekPtr offset position
@@ -87,95 +185,357 @@ public class Inode {
         //so simply return the pointer to the direct access at that target index
         if (targ < directSize) {
             return direct[targ];
-            //indirect points to an indirect block
-            //this allows for indirection to split the block into pieces
-        } else if (indirect < 0) {//if the indirect is invalid
+        }
+        int depth = depthOf(targ);
+        if (depth < 0) {//past the largest file this format can map
             return -1;//return invalid block num
-            //otherwise we know it's an indirect block
-        } else {
-            //make a new byte array to copy the data from the indirect block
-            byte[] targetBlockData = new byte[MAX_BLOCK_SIZE_BYTES];
-            //read the data from the indirect into the byte array
-            SysLib.rawread(indirect, targetBlockData);
-            //get the offset from the target by subtracting directSize (the 11 amount specified)
-            int offset = (targ - directSize);//guaranteed not to be negative
-            offset *= 2; //multiply offset by two to put the bytes2short into the targetblockdata
-            return SysLib.bytes2short(targetBlockData, offset);//make syslib read it in to the array
         }
+        //otherwise walk down the index blocks, each one is decoded once and kept with the inode
+        int rel = relativeIndex(targ, depth);
+        int block = root(depth);
+        for (int level = depth - 1; level >= 0 && block >= 0; level--) {
+            block = loadIndex(block)[slot(rel, level)];
+        }
+        return block;
     }
 
-    public boolean registerIndexBlock(short freeBlock) {
-        if (indirect != -1) {//otherwise if the indirect has already been registered
-            return false;//then we say we can't register the new one
+    //Number of file blocks from targ on that are known to be unmapped without reading further: 0 if targ is
+    //mapped, otherwise up to the end of the largest missing subtree of the index that targ falls in, at least 1.
+    //Lets a search for data skip a hole the size of a whole index tree in one step
+    public int holeSpan(int targ) {
+        if (targ < directSize) {
+            return (direct[targ] < 0) ? 1 : 0;
         }
-        //iterate through all the direct access array
-        for (int i = 0; i < directSize; i++) {
-            //if anything in direct access was -1, it hasn't been set
-            if (direct[i] == -1) {//so simply
-                return false;//return false to indicate that not all of the direct blocks have been set
-                //so there's no point in setting the indirect index block at this point
-            }
+        int depth = depthOf(targ);
+        if (depth < 0) {//past the largest file this format can map
+            return 1;
+        }
+        int rel = relativeIndex(targ, depth);
+        int span = 1;
+        for (int level = 0; level < depth; level++) {
+            span *= entriesPerIndex();
+        }
+        int block = root(depth);
+        for (int level = depth - 1; block >= 0 && level >= 0; level--) {
+            span /= entriesPerIndex(); //file blocks under one entry of this level's index block
+            block = loadIndex(block)[slot(rel, level)];
         }
-        //else, then we know we can set the indirect block
-        indirect = freeBlock;//so allocate the indirect index to point to the free block
-        byte[] data = new byte[MAX_BLOCK_SIZE_BYTES];//create the array for the size of the block
-        for (int j = 0; j < MAX_BLOCK_SIZE_BYTES / 2; j++) {//then iterate through for half the size because short
-            int offset = j * 2;//and set the offset to be read into the byte array
-            SysLib.short2bytes((short)-1, data, offset);//actually read it in
+        if (block >= 0) {
+            return 0;
         }
-        SysLib.rawwrite(freeBlock, data);//then write it to the data block from the freeblock
-        return true;//and return true to indicate proper indexes
+        return span - rel % span; //the rest of the missing subtree, measured from targ
+    }
 
+    //Hooks indexBlock into the tree as the first index block missing on the path to seekPtr. Returns false when
+    //the path is already complete or seekPtr is not mapped through index blocks
+    public boolean registerIndexBlock(int seekPtr, int indexBlock) {
+        int targ = seekPtr / MAX_BLOCK_SIZE_BYTES;
+        int depth = (targ < directSize) ? -1 : depthOf(targ);
+        if (depth < 0 || !fitsPointer(indexBlock)) {
+            return false;
+        }
+        int block = root(depth);
+        if (block < 0) {
+            setRoot(depth, indexBlock);
+            newIndex(indexBlock);
+            return true;
+        }
+        int rel = relativeIndex(targ, depth);
+        for (int level = depth - 1; level > 0; level--) {
+            int[] index = loadIndex(block);
+            int s = slot(rel, level);
+            if (index[s] < 0) {//the first missing index block on the way down
+                index[s] = indexBlock;
+                dirtyIndexBlocks.add(block);
+                newIndex(indexBlock);
+                return true;
+            }
+            block = index[s];
+        }
+        return false;
     }
 
-    public int registerTargetBlock(int seekPtr, short freeBlock) {
-        //this method registers a target block based on the seekPtr and the freeblock short
+    public int registerTargetBlock(int seekPtr, int freeBlock) {
+        //this method registers a target block based on the seekPtr and the freeblock number
         int regTarg = seekPtr / MAX_BLOCK_SIZE_BYTES;//the register target is the seekptr divided by blocksize
-        //if the block is within the direct size indexing
+        if (!fitsPointer(freeBlock)) {//a version 1 inode cannot hold this block number
+            return -1;
+        }
+        //if the block is within the direct size indexing. Earlier blocks may be unset, files can have holes
         if(regTarg < directSize) {
-            //if the register target block is in a good index range and the direct array
-            //at the block minus one is not set
-            if (regTarg > 0 && direct[regTarg - 1] == -1) {
-                return -2;//signal for regtarg at this val
-            } else if (direct[regTarg] >= 0) {//otherwiser, if the direct at the registar target was set
+            if (direct[regTarg] >= 0) {//if the direct at the registar target was set
                 return -1;//then indicate that we shouldn't register
             } else {//otherwise, set the direct array at the regtarg index to be the freeblock point
                 direct[regTarg] = freeBlock;
                 return 0;//return the 0 to signal for regTarg
             }
-        } else if(indirect < 0) {//if the indirect wasn't set
-            return -3;//this isn't relevant to this method because this is about regging direct blocks
-        } else {//otherwise, reg targ is equivalent to the indirect value
-            byte[] targBlkData = new byte[MAX_BLOCK_SIZE_BYTES];//create the byte array for targ blk data
-            SysLib.rawread(indirect, targBlkData);//read from the indirect
-            //set the offset as the registered target - the direct array access
-            int offset = (regTarg - directSize) * 2;
-            if (SysLib.bytes2short(targBlkData, offset) <= 0) {//see if the resulting
-                //short from bytes2short in targetblkdata at the offset is less than equal to 0
-                //if it was
-                SysLib.short2bytes(freeBlock, targBlkData, offset);//then the bytes need to be read in to the targ
-                //because the bytes need to be read back in to be written back into the disk
-                //and then written from indirect and targblkdata
-                SysLib.rawwrite(indirect, targBlkData);
-                return 0;//return the 0 to signal for regTarg as success
-            } else {
-                return -1;//return the error as signal for regtarg
+        }
+        int depth = depthOf(regTarg);
+        if (depth < 0) {//past the largest file this format can map
+            return -1;
+        }
+        int rel = relativeIndex(regTarg, depth);
+        int block = root(depth);
+        for (int level = depth - 1; level > 0 && block >= 0; level--) {
+            block = loadIndex(block)[slot(rel, level)];
+        }
+        if (block < 0) {//an index block on the way is missing, the caller has to register one first
+            return -3;
+        }
+        int[] index = loadIndex(block);
+        int offset = slot(rel, 0);
+        if (index[offset] >= 0) {//the file block is already mapped
+            return -1;
+        }
+        index[offset] = freeBlock;//register the block in the in-memory index
+        if (block != lastDirtyIndex) {//and remember to write the index back once for the whole write call
+            dirtyIndexBlocks.add(block);
+            lastDirtyIndex = block;
+        }
+        return 0;
+    }
+
+    //Unmaps the file block at seekPtr and returns the disk block it was mapped to, or -1 if there was none. Index
+    //blocks on the way stay in the tree. The caller is responsible for freeing the returned block
+    public int unregisterTargetBlock(int seekPtr) {
+        int targ = seekPtr / MAX_BLOCK_SIZE_BYTES;
+        if (targ < directSize) {
+            int block = direct[targ];
+            direct[targ] = -1;
+            return block;
+        }
+        int depth = depthOf(targ);
+        if (depth < 0) {//past the largest file this format can map
+            return -1;
+        }
+        int rel = relativeIndex(targ, depth);
+        int block = root(depth);
+        for (int level = depth - 1; level > 0 && block >= 0; level--) {
+            block = loadIndex(block)[slot(rel, level)];
+        }
+        if (block < 0) {
+            return -1;
+        }
+        int[] index = loadIndex(block);
+        int offset = slot(rel, 0);
+        int target = index[offset];
+        if (target >= 0) {
+            index[offset] = -1;
+            dirtyIndexBlocks.add(block);
+        }
+        return target;
+    }
+
+    //Returns every block reachable through the indirect pointers, data blocks and the index blocks themselves,
+    //and unregisters them, or null if there are none. The caller is responsible for freeing the returned blocks
+    public int[] unregisterIndexBlocks() {
+        int total = 0;
+        for (int depth = 1; depth <= maxDepth(); depth++) {
+            total += countTree(root(depth), depth);
+        }
+        if (total == 0) {
+            return null;
+        }
+        int[] blocks = new int[total];
+        int n = 0;
+        for (int depth = 1; depth <= maxDepth(); depth++) {
+            n = collectTree(root(depth), depth, blocks, n);
+            setRoot(depth, -1);
+        }
+        indexBlocks.clear();
+        dirtyIndexBlocks.clear(); //the index blocks are being freed, nothing left to write back
+        lastDirtyIndex = -1;
+        return blocks;
+    }
+
+    //Forgets the append reservations, called when the file is truncated and its blocks are gone
+    public void resetAppend() {
+        appendEnd.set(0);
+        appendMapped = 0;
+    }
+
+    //Detaches the indirect trees from the inode without walking them and returns their roots (single, double and
+    //triple indirect, -1 where there is none) for the Reclaimer, or null if the file has no index blocks. Index
+    //blocks changed in memory are written first, so whoever walks the tree later reads what the inode saw
+    public int[] detachIndexBlocks() {
+        if (indirect < 0 && doubleIndirect < 0 && tripleIndirect < 0) {
+            return null;
+        }
+        flushIndex();
+        int[] roots = {indirect, doubleIndirect, tripleIndirect};
+        indirect = doubleIndirect = tripleIndirect = -1;
+        indexBlocks.clear();
+        return roots;
+    }
+
+    //Every block of a tree detached by detachIndexBlocks, data blocks and index blocks alike, reading the index
+    //blocks in the given inode format through journal
+    public static int[] detachedBlocks(int[] roots, int version, Journal journal) {
+        Inode walker = new Inode(version, journal); //decodes this format's pointers, keeps each index it reads
+        int total = 0;
+        for (int depth = 1; depth <= roots.length; depth++) {
+            total += walker.countTree(roots[depth - 1], depth);
+        }
+        int[] blocks = new int[total];
+        int n = 0;
+        for (int depth = 1; depth <= roots.length; depth++) {
+            n = walker.collectTree(roots[depth - 1], depth, blocks, n);
+        }
+        return blocks;
+    }
+
+    //Writes every index block that changed since it was last written, called when the inode itself is synced
+    public void flushIndex() {
+        if (dirtyIndexBlocks.isEmpty()) {
+            return;
+        }
+        byte[] data = scratchBlock.get();
+        for (Iterator<Integer> it = dirtyIndexBlocks.iterator(); it.hasNext(); ) {
+            int block = it.next();
+            int[] index = indexBlocks.get(block);
+            for (int j = 0; j < index.length; j++) {
+                writePointer(index[j], data, j * pointerSize());
+            }
+            journal.write(block, data);
+        }
+        dirtyIndexBlocks.clear();
+        lastDirtyIndex = -1;
+    }
+
+    //Decodes an index block the first time it is needed and keeps it for every later lookup
+    private int[] loadIndex(int block) {
+        int[] index = indexBlocks.get(block);
+        if (index == null) {
+            byte[] data = scratchBlock.get();
+            journal.read(block, data);
+            index = new int[entriesPerIndex()];
+            for (int j = 0; j < index.length; j++) {
+                index[j] = readPointer(data, j * pointerSize());
+                if (index[j] == 0) {
+                    index[j] = -1; //block 0 is the superblock, a zero entry was never written
+                }
+            }
+            //published only once fully decoded, readers may race to load it
+            int[] raced = indexBlocks.putIfAbsent(block, index);
+            if (raced != null) {
+                index = raced;
+            }
+        }
+        return index;
+    }
+
+    //Starts an empty in-memory index for a freshly allocated index block, written by flushIndex
+    private void newIndex(int block) {
+        int[] index = new int[entriesPerIndex()];
+        for (int j = 0; j < index.length; j++) {
+            index[j] = -1;
+        }
+        indexBlocks.put(block, index);
+        dirtyIndexBlocks.add(block);
+    }
+
+    //Number of blocks in the tree below block, index blocks included
+    private int countTree(int block, int depth) {
+        if (block < 0) {
+            return 0;
+        }
+        int count = 1;
+        if (depth > 0) {
+            int[] index = loadIndex(block);
+            for (int j = 0; j < index.length; j++) {
+                count += countTree(index[j], depth - 1);
+            }
+        }
+        return count;
+    }
+
+    //Stores the blocks counted by countTree into blocks from position n on, returns the next free position
+    private int collectTree(int block, int depth, int[] blocks, int n) {
+        if (block < 0) {
+            return n;
+        }
+        if (depth > 0) {
+            int[] index = loadIndex(block);
+            for (int j = 0; j < index.length; j++) {
+                n = collectTree(index[j], depth - 1, blocks, n);
+            }
+        }
+        blocks[n++] = block;
+        return n;
+    }
+
+    //Which tree maps file block targ (at least directSize): 1 single, 2 double, 3 triple, -1 none
+    private int depthOf(int targ) {
+        long rel = targ - directSize;
+        long span = entriesPerIndex();
+        for (int depth = 1; depth <= maxDepth(); depth++) {
+            if (rel < span) {
+                return depth;
             }
+            rel -= span;
+            span *= entriesPerIndex();
         }
+        return -1;
+    }
+
+    //Position of file block targ among the blocks mapped by the tree of the given depth
+    private int relativeIndex(int targ, int depth) {
+        int rel = targ - directSize;
+        int span = entriesPerIndex();
+        for (int d = 1; d < depth; d++) {
+            rel -= span;
+            span *= entriesPerIndex();
+        }
+        return rel;
+    }
+
+    //Entry to follow in an index block that is level steps above the data blocks
+    private int slot(int rel, int level) {
+        for (int i = 0; i < level; i++) {
+            rel /= entriesPerIndex();
+        }
+        return rel % entriesPerIndex();
+    }
+
+    private int root(int depth) {
+        return (depth == 1) ? indirect : (depth == 2) ? doubleIndirect : tripleIndirect;
     }
 
-    public byte[] unregisterIndexBlock() {
-        //if the indirect pointer is actually pointing to something
-        if (indirect >= 0) {
-            //then we're going to need a byte array to write all the bytes to for the retVal
-            byte[] indexBlock = new byte[MAX_BLOCK_SIZE_BYTES];
-            //read the bytes from the indirect block index onward to fill up the indexBlock data
-            SysLib.rawread(indirect, indexBlock);
-            indirect = -1; //we wanted to unregister, so set the indirect pointer to -1 so it's invalidated
-            return indexBlock; //return that byte array
+    private void setRoot(int depth, int block) {
+        if (depth == 1) {
+            indirect = block;
+        } else if (depth == 2) {
+            doubleIndirect = block;
         } else {
-            //otherwise the indirect wasn't pointing to anything so return null
-            return null;
+            tripleIndirect = block;
+        }
+    }
+
+    private int maxDepth() {
+        return (version == VERSION_1) ? 1 : 3;
+    }
+
+    private int pointerSize() {
+        return (version == VERSION_1) ? BYTES_IN_A_SHORT : BYTES_IN_AN_INTEGER;
+    }
+
+    private int entriesPerIndex() {
+        return MAX_BLOCK_SIZE_BYTES / pointerSize();
+    }
+
+    private boolean fitsPointer(int block) {
+        return version != VERSION_1 || block <= Short.MAX_VALUE;
+    }
+
+    private int readPointer(byte[] data, int offset) {
+        return (version == VERSION_1) ? SysLib.bytes2short(data, offset) : SysLib.bytes2int(data, offset);
+    }
+
+    private void writePointer(int block, byte[] data, int offset) {
+        if (version == VERSION_1) {
+            SysLib.short2bytes((short)block, data, offset);
+        } else {
+            SysLib.int2bytes(block, data, offset);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,87 @@
+//In-core inode table: keeps exactly one Inode object per iNumber so every file table entry that opens the same
+//file shares the same count and length. Inodes are read from disk the first time they are needed, stay resident
+//afterwards, and are only written back when they are dirty and the file system syncs.
+public class InodeTable {
+    private final static int MAX_BLOCK_SIZE_BYTES = 512;
+
+    private Inode[] inodes;   //resident inodes indexed by iNumber, null until first use
+    private final int version;        //on-disk inode format of the mounted disk
+    private final int inodesPerBlock; //16 version 1, 8 version 2 or 4 version 3 inodes fill a block
+    private final Journal journal;    //inode blocks are staged in the metadata journal
+
+    public InodeTable(int maxInodes, int version, Journal journal) {
+        inodes = new Inode[maxInodes];
+        this.version = version;
+        this.journal = journal;
+        inodesPerBlock = Inode.perBlock(version);
+    }
+
+    //Returns the shared in-core inode for iNumber, loading it on first use, and takes a reference on it
+    public synchronized Inode iget(short iNumber) {
+        Inode inode = inodes[iNumber];
+        if (inode == null) {               //not resident yet, read it once from disk
+            inode = new Inode(iNumber, version, journal);
+            inode.count = 0;               //no file table entry points at a freshly loaded inode
+            inodes[iNumber] = inode;
+        }
+        inode.count++;
+        return inode;
+    }
+
+    //Installs a brand new, empty inode for a freshly allocated iNumber and takes a reference on it
+    public synchronized Inode ialloc(short iNumber) {
+        Inode inode = new Inode(version, journal);
+        inode.count = 1;
+        inode.dirty = true;                //the on-disk copy may still hold a deleted file
+        inodes[iNumber] = inode;
+        return inode;
+    }
+
+    //Drops a reference taken by iget or ialloc, the inode itself stays resident for the next open
+    public synchronized void iput(short iNumber) {
+        if (inodes[iNumber] != null && inodes[iNumber].count > 0) {
+            inodes[iNumber].count--;
+        }
+    }
+
+    //Records that the in-core inode changed and has to be written back on the next sync. Called by writers that
+    //hold the inode's write lock, so it only sets the inode's own flag and never waits for the table monitor
+    public void markDirty(short iNumber) {
+        inodes[iNumber].dirty = true;
+    }
+
+    //Writes every dirty inode back, reading and writing each inode block once no matter how many of its
+    //inodes changed
+    //Each inode is serialized under its read lock so a concurrent writer never leaves it half updated
+    public synchronized void sync() {
+        byte[] block = new byte[MAX_BLOCK_SIZE_BYTES];
+        for (int first = 0; first < inodes.length; first += inodesPerBlock) {
+            int last = Math.min(first + inodesPerBlock, inodes.length);
+            boolean blockDirty = false;
+            for (int i = first; i < last; i++) { //is anything in this block dirty?
+                blockDirty |= inodes[i] != null && inodes[i].dirty;
+            }
+            if (!blockDirty) {
+                continue;
+            }
+            int blockNumber = 1 + (first / inodesPerBlock);
+            journal.read(blockNumber, block); //an earlier sync may have staged a newer copy than the cache has
+            for (int i = first; i < last; i++) {
+                Inode inode = inodes[i];
+                if (inode != null && inode.dirty) {
+                    inode.lock.readLock().lock();
+                    try {
+                        synchronized (inode.appendLock) { //appenders map blocks under the read lock too
+                            inode.flushIndex(); //index blocks are written by their owning inode
+                            inode.toBytes(block, (i % inodesPerBlock) * Inode.size(version));
+                            inode.dirty = false;
+                        }
+                    } finally {
+                        inode.lock.readLock().unlock();
+                    }
+                }
+            }
+            journal.write(blockNumber, block);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+//Write-ahead journal for file system metadata: the superblock, bitmap, inode, index and directory blocks.
+//Metadata writers stage whole block images here instead of writing them in place. commit() appends everything
+//staged as one transaction to the journal region (descriptor blocks naming the home block of every image, the
+//images, revoke records, and a commit block carrying a checksum) and only then hands the images to the block
+//cache for their home blocks, which the cache writes back whenever it likes. replay() re-applies every complete
+//transaction on mount, so after a crash the metadata is always as of some commit, never half of one.
+//seal() closes the running transaction, so its caller holds off other stagers only while it stages, and
+//commit(tid) then writes it. A thread whose transaction is sealed while another commit is being written waits for
+//it and then writes its own together with every other one sealed in the meantime, as one transaction; the threads
+//that sealed those only wait. The log is only emptied (checkpointed) when a transaction no longer fits. A journal of
+//length 0, on disks formatted without one, writes straight through to the cache like the file system always did.
+public class Journal {
+    private final static int HEADER_MAGIC = 0x4A484452;    //"JHDR", first block of the journal region
+    private final static int DESCRIPTOR_MAGIC = 0x4A444553; //"JDES", names the blocks that follow it
+    private final static int COMMIT_MAGIC = 0x4A434D54;     //"JCMT", closes a transaction
+    private final static int IMAGES = 0;                    //descriptor followed by one image per tag
+    private final static int REVOKES = 1;                   //descriptor listing blocks freed by the transaction
+    private final static int BLOCK_SIZE = 512;
+    private final static int TAGS_PER_DESCRIPTOR = (BLOCK_SIZE - 16) / 4; //after magic, seq, type and count
+
+    private final int start;   //header block, the log itself runs from start + 1 to start + length - 1
+    private final int length;  //blocks in the region, 0 when the disk has no journal
+    private int head;          //next free log block
+    private int seq;           //sequence number of the next transaction written to the log
+
+    private LinkedHashMap<Integer, byte[]> running = new LinkedHashMap<Integer, byte[]>(); //staged, by home block
+    private HashSet<Integer> runningRevokes = new HashSet<Integer>();
+    private LinkedHashMap<Integer, byte[]> sealed = new LinkedHashMap<Integer, byte[]>(); //closed, not written yet
+    private HashSet<Integer> sealedRevokes = new HashSet<Integer>();
+    private Map<Integer, byte[]> committing;                  //being written to the log right now
+    private final HashSet<Integer> logged = new HashSet<Integer>(); //home blocks with an image in the live log
+    private final BitSet journaled = new BitSet(); //every block ever staged, so revoke can skip data blocks unboxed
+    private long runningTid = 1;   //id of the transaction currently collecting images
+    private long sealedTid = 0;    //the last transaction sealed
+    private long committedTid = 0; //every transaction up to this one is in the log
+    private boolean committingNow;
+    private Runnable beforeLog;    //run before a transaction is written, while the disk may still be marked clean
+
+    public Journal(int start, int length) {
+        this.start = start;
+        this.length = length;
+        head = start + 1;
+        seq = 1;
+    }
+
+    //Sets what runs before every non-empty transaction is written to the log
+    public void beforeLog(Runnable hook) {
+        beforeLog = hook;
+    }
+
+    public boolean enabled() {
+        return length > 0;
+    }
+
+    //Stages a metadata block image for the next commit, the data is copied
+    public boolean write(int blockId, byte[] data) {
+        if (!enabled()) {
+            return SysLib.cwrite(blockId, data) == Kernel.OK;
+        }
+        synchronized (this) {
+            byte[] image = running.get(blockId);
+            if (image == null) {
+                image = new byte[BLOCK_SIZE];
+                running.put(blockId, image);
+                journaled.set(blockId);
+            }
+            System.arraycopy(data, 0, image, 0, BLOCK_SIZE);
+            runningRevokes.remove(blockId); //the block is metadata again
+        }
+        return true;
+    }
+
+    //Reads the newest image of a metadata block: staged, sealed, being committed, or from the cache
+    public boolean read(int blockId, byte[] buffer) {
+        if (enabled()) {
+            synchronized (this) {
+                byte[] image = running.get(blockId);
+                if (image == null) {
+                    image = sealed.get(blockId);
+                }
+                if (image == null && committing != null) {
+                    image = committing.get(blockId);
+                }
+                if (image != null) {
+                    System.arraycopy(image, 0, buffer, 0, BLOCK_SIZE);
+                    return true;
+                }
+            }
+        }
+        return SysLib.cread(blockId, buffer) == Kernel.OK;
+    }
+
+    //Called when a block is freed. A block whose image is still in the log gets a revoke record, so replay will
+    //not copy that stale image over whatever the block holds after it is reused
+    public synchronized void revoke(int blockId) {
+        if (!enabled() || !journaled.get(blockId)) { //never staged, so not in any transaction or the log
+            return;
+        }
+        running.remove(blockId);
+        if (logged.contains(blockId) || sealed.containsKey(blockId)
+                || (committing != null && committing.containsKey(blockId))) {
+            runningRevokes.add(blockId);
+        }
+    }
+
+    //Commits everything staged so far, returning once it is in the log
+    public void commit() {
+        commit(seal());
+    }
+
+    //Closes the running transaction and returns its id for commit(tid). Whatever is staged from now on goes into
+    //the next one. Transactions sealed and not written yet are merged into one, the newest image of a block wins
+    public synchronized long seal() {
+        for (Map.Entry<Integer, byte[]> entry : running.entrySet()) {
+            sealed.put(entry.getKey(), entry.getValue());
+            sealedRevokes.remove(entry.getKey()); //the block is metadata again
+        }
+        sealedRevokes.addAll(runningRevokes); //replay skips an image revoked in the same transaction
+        running = new LinkedHashMap<Integer, byte[]>();
+        runningRevokes = new HashSet<Integer>();
+        sealedTid = runningTid++;
+        return sealedTid;
+    }
+
+    //Returns once transaction tid is in the log. The first caller to find no commit running writes every sealed
+    //transaction as one, callers whose transaction it took along just wait for it. File data written before the
+    //seal reaches the disk first, and without a journal that is all a commit does
+    public void commit(long tid) {
+        if (!enabled()) {
+            SysLib.csync();
+            return;
+        }
+        long myTid;
+        Map<Integer, byte[]> images;
+        HashSet<Integer> revokes;
+        synchronized (this) {
+            while (committingNow && committedTid < tid) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    //keep waiting, the transaction still has to reach the log
+                }
+            }
+            if (committedTid >= tid) {
+                return; //the thread that committed before us took our images along
+            }
+            committingNow = true; //this thread writes the transaction, later callers queue up behind it
+            myTid = sealedTid; //everything sealed so far, this caller's transaction included
+            images = sealed;
+            revokes = sealedRevokes;
+            committing = images;
+            sealed = new LinkedHashMap<Integer, byte[]>();
+            sealedRevokes = new HashSet<Integer>();
+        }
+        try {
+            SysLib.csync(); //the data of every sealed transaction is on disk before the metadata pointing at it
+            writeTransaction(images, revokes);
+        } finally {
+            synchronized (this) {
+                committing = null;
+                committedTid = myTid;
+                committingNow = false;
+                notifyAll();
+            }
+        }
+    }
+
+    //Re-applies every complete transaction found in the log and empties it, returns how many were applied.
+    //Called once on mount, before anything else reads metadata
+    public int replay() {
+        if (!enabled()) {
+            return 0;
+        }
+        byte[] block = new byte[BLOCK_SIZE];
+        SysLib.rawread(start, block);
+        if (SysLib.bytes2int(block, 0) != HEADER_MAGIC) { //never used, start a log
+            writeHeader();
+            return 0;
+        }
+        seq = SysLib.bytes2int(block, 4);
+        //first pass: find the complete transactions and the last transaction revoking each block
+        HashMap<Integer, Integer> revokedIn = new HashMap<Integer, Integer>();
+        int[] ends = new int[length];
+        int transactions = 0;
+        int pos = start + 1;
+        while (true) {
+            int end = scanTransaction(pos, seq + transactions, revokedIn);
+            if (end < 0) {
+                break;
+            }
+            ends[transactions++] = end;
+            pos = end;
+        }
+        //second pass: copy the images home in log order, skipping those revoked by the same or a later transaction
+        byte[] image = new byte[BLOCK_SIZE];
+        pos = start + 1;
+        for (int t = 0; t < transactions; t++) {
+            int txSeq = seq + t;
+            while (pos < ends[t] - 1) {
+                SysLib.rawread(pos++, block);
+                int count = SysLib.bytes2int(block, 12);
+                if (SysLib.bytes2int(block, 8) != IMAGES) {
+                    continue;
+                }
+                for (int i = 0; i < count; i++) {
+                    int home = SysLib.bytes2int(block, 16 + i * 4);
+                    SysLib.rawread(pos++, image);
+                    Integer revoked = revokedIn.get(home);
+                    if (revoked == null || revoked < txSeq) {
+                        SysLib.cwrite(home, image);
+                    }
+                }
+            }
+            pos = ends[t];
+        }
+        seq += transactions;
+        checkpoint();
+        return transactions;
+    }
+
+    //Picks up the log of a cleanly unmounted disk, known to be empty, from its header alone instead of replaying it
+    public void resume() {
+        if (!enabled()) {
+            return;
+        }
+        byte[] block = new byte[BLOCK_SIZE];
+        SysLib.rawread(start, block);
+        if (SysLib.bytes2int(block, 0) != HEADER_MAGIC) {
+            writeHeader();
+            return;
+        }
+        seq = SysLib.bytes2int(block, 4);
+    }
+
+    //Empties the log once every committed image is on disk. The caller makes sure no commit is running
+    public void drain() {
+        if (enabled()) {
+            checkpoint();
+        }
+    }
+
+    //Sets up an empty log on a freshly formatted disk. Sequence numbers carry on from whatever journal was here
+    //before, far enough ahead that none of its leftover records can pass for a new one
+    public void format() {
+        SysLib.flush(); //no stale cached copy of a block now inside the region may be written back over the log
+        byte[] block = new byte[BLOCK_SIZE];
+        SysLib.rawread(start, block);
+        if (SysLib.bytes2int(block, 0) == HEADER_MAGIC) {
+            seq = SysLib.bytes2int(block, 4) + length; //every live record had a smaller sequence number
+        }
+        head = start + 1;
+        writeHeader();
+    }
+
+    //Appends one transaction to the log and then hands its images to the cache for their home blocks.
+    //Only the committing thread gets here
+    private void writeTransaction(Map<Integer, byte[]> images, HashSet<Integer> revokes) {
+        if (images.isEmpty() && revokes.isEmpty()) {
+            return;
+        }
+        if (beforeLog != null) {
+            beforeLog.run();
+        }
+        int needed = descriptors(images.size()) + images.size() + descriptors(revokes.size()) + 1;
+        if (head + needed > start + length) {
+            checkpoint(); //make room by emptying the log
+        }
+        if (head + needed > start + length) { //bigger than the whole journal, it cannot be made atomic
+            SysLib.cerr("ThreadOS: metadata transaction larger than the journal, written in place\n");
+            for (Map.Entry<Integer, byte[]> entry : images.entrySet()) {
+                SysLib.cwrite(entry.getKey(), entry.getValue());
+            }
+            SysLib.csync();
+            return;
+        }
+        CRC32 crc = new CRC32();
+        byte[] descriptor = new byte[BLOCK_SIZE];
+        int pos = head;
+        Iterator<Map.Entry<Integer, byte[]>> it = images.entrySet().iterator();
+        while (it.hasNext()) { //descriptor, then the images it names
+            int count = 0;
+            byte[][] batch = new byte[TAGS_PER_DESCRIPTOR][];
+            while (it.hasNext() && count < TAGS_PER_DESCRIPTOR) {
+                Map.Entry<Integer, byte[]> entry = it.next();
+                SysLib.int2bytes(entry.getKey(), descriptor, 16 + count * 4);
+                batch[count++] = entry.getValue();
+            }
+            fillDescriptor(descriptor, IMAGES, count);
+            pos = logWrite(pos, descriptor, crc);
+            for (int i = 0; i < count; i++) {
+                pos = logWrite(pos, batch[i], crc);
+            }
+        }
+        Iterator<Integer> revoked = revokes.iterator();
+        while (revoked.hasNext()) {
+            int count = 0;
+            while (revoked.hasNext() && count < TAGS_PER_DESCRIPTOR) {
+                SysLib.int2bytes(revoked.next(), descriptor, 16 + count * 4);
+                count++;
+            }
+            fillDescriptor(descriptor, REVOKES, count);
+            pos = logWrite(pos, descriptor, crc);
+        }
+        //the commit block goes out only after every block before it was written
+        byte[] commit = new byte[BLOCK_SIZE];
+        SysLib.int2bytes(COMMIT_MAGIC, commit, 0);
+        SysLib.int2bytes(seq, commit, 4);
+        SysLib.int2bytes(pos - head, commit, 8);
+        SysLib.int2bytes((int)crc.getValue(), commit, 12);
+        SysLib.rawwrite(pos++, commit);
+        head = pos;
+        seq++;
+        synchronized (this) {
+            logged.addAll(images.keySet());
+        }
+        for (Map.Entry<Integer, byte[]> entry : images.entrySet()) { //now the home blocks may be overwritten
+            SysLib.cwrite(entry.getKey(), entry.getValue());
+        }
+    }
+
+    //Pushes every committed image to its home block on disk and empties the log
+    private void checkpoint() {
+        SysLib.csync();
+        head = start + 1;
+        writeHeader(); //replay now expects seq right after the header, older records no longer match
+        synchronized (this) {
+            logged.clear();
+        }
+    }
+
+    //Checks the transaction with sequence number txSeq starting at pos and returns the block after its commit
+    //block, or -1 if it is missing, torn or belongs to an older log. Its revokes are recorded only if it is complete
+    private int scanTransaction(int pos, int txSeq, HashMap<Integer, Integer> revokedIn) {
+        byte[] block = new byte[BLOCK_SIZE];
+        CRC32 crc = new CRC32();
+        HashSet<Integer> revokes = new HashSet<Integer>();
+        int first = pos;
+        while (pos < start + length) {
+            SysLib.rawread(pos++, block);
+            int magic = SysLib.bytes2int(block, 0);
+            if (SysLib.bytes2int(block, 4) != txSeq) {
+                return -1;
+            }
+            if (magic == COMMIT_MAGIC) {
+                boolean intact = SysLib.bytes2int(block, 8) == pos - 1 - first
+                        && SysLib.bytes2int(block, 12) == (int)crc.getValue();
+                if (!intact) {
+                    return -1;
+                }
+                for (Integer home : revokes) {
+                    revokedIn.put(home, txSeq);
+                }
+                return pos;
+            }
+            if (magic != DESCRIPTOR_MAGIC) {
+                return -1;
+            }
+            crc.update(block, 0, BLOCK_SIZE);
+            int count = SysLib.bytes2int(block, 12);
+            if (count < 0 || count > TAGS_PER_DESCRIPTOR) {
+                return -1;
+            }
+            if (SysLib.bytes2int(block, 8) == REVOKES) {
+                for (int i = 0; i < count; i++) {
+                    revokes.add(SysLib.bytes2int(block, 16 + i * 4));
+                }
+                continue;
+            }
+            byte[] image = new byte[BLOCK_SIZE];
+            for (int i = 0; i < count && pos < start + length; i++) {
+                SysLib.rawread(pos++, image);
+                crc.update(image, 0, BLOCK_SIZE);
+            }
+        }
+        return -1;
+    }
+
+    private void fillDescriptor(byte[] descriptor, int type, int count) {
+        SysLib.int2bytes(DESCRIPTOR_MAGIC, descriptor, 0);
+        SysLib.int2bytes(seq, descriptor, 4);
+        SysLib.int2bytes(type, descriptor, 8);
+        SysLib.int2bytes(count, descriptor, 12);
+    }
+
+    //Writes one log block straight to the device, the cache must not reorder or delay it
+    private int logWrite(int pos, byte[] data, CRC32 crc) {
+        SysLib.rawwrite(pos, data);
+        crc.update(data, 0, BLOCK_SIZE);
+        return pos + 1;
+    }
+
+    private void writeHeader() {
+        byte[] header = new byte[BLOCK_SIZE];
+        SysLib.int2bytes(HEADER_MAGIC, header, 0);
+        SysLib.int2bytes(seq, header, 4);
+        SysLib.rawwrite(start, header);
+    }
+
+    private static int descriptors(int tags) {
+        return (tags + TAGS_PER_DESCRIPTOR - 1) / TAGS_PER_DESCRIPTOR;
+    }
+}
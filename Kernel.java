@@ -7,6 +7,10 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 public class Kernel
 {
@@ -41,6 +45,14 @@ public class Kernel
     //              int whence )
     public final static int FORMAT  = 18; // SysLib.format( int files )
     public final static int DELETE  = 19; // SysLib.delete( String fileName )
+    public final static int PREAD   = 20; // SysLib.pread( int fd, ByteBuffer dst, int offset )
+    public final static int PWRITE  = 21; // SysLib.pwrite( int fd, ByteBuffer src, int offset )
+    public final static int MKDIR   = 22; // SysLib.mkdir( String path )
+    public final static int RMDIR   = 23; // SysLib.rmdir( String path )
+    public final static int READDIR = 24; // SysLib.readdir( String path, List<String> names )
+    public final static int STATS   = 25; // SysLib.stats( Map<String, Long> stats )
+    public final static int SEEKREAD= 26; // SysLib.seekAndRead( int fd, int offset, byte b[] )
+    public final static int FHANDLE = 27; // SysLib.openHandle( String fileName, String mode )
 
     // Predefined file descriptors
     public final static int STDIN  = 0;
@@ -54,12 +66,15 @@ public class Kernel
     // System thread references
     private static Scheduler scheduler;
     private static Disk disk;
+    private static BlockDevice blockDevice; // serves every raw block request
     private static Cache cache;
 
     // Synchronized Queues
     private static SyncQueue waitQueue;  // for threads to wait for their child
     private static SyncQueue ioQueue;    // I/O queue
     private static FileSystem fileSystem; //Declare a FileSystem object
+    private static boolean unmountHooked; // the shutdown hook that unmounts is registered
+    private final static KernelStats stats = new KernelStats( ); // per system call counters, see SysLib.stats
     private final static int COND_DISK_REQ = 1; // wait condition
     private final static int COND_DISK_FIN = 2; // wait condition
 
@@ -68,8 +83,32 @@ public class Kernel
             = new BufferedReader( new InputStreamReader( System.in ) );
 
 
-    // The heart of Kernel
+    // Brings the file system up on the given device and cache without the scheduler or the simulated disk, for
+    // programs such as FsBenchmark that drive FileSystem directly from their own threads. Raw and cached block
+    // system calls work afterwards; calls that need a TCB do not
+    public static FileSystem mount( BlockDevice device, int diskBlocks, Cache blockCache ) {
+        blockDevice = device;
+        cache = blockCache;
+        fileSystem = new FileSystem( diskBlocks, cache );
+        stats.attach( fileSystem, cache );
+        return fileSystem;
+    }
+
+    // The heart of Kernel. System calls are counted and timed on the way through
     public static int interrupt( int irq, int cmd, int param, Object args ) {
+        if ( irq != INTERRUPT_SOFTWARE || !KernelStats.ENABLED ) {
+            return dispatch( irq, cmd, param, args );
+        }
+        long[] io = stats.enter( cmd );
+        long start = System.nanoTime( );
+        try {
+            return dispatch( irq, cmd, param, args );
+        } finally {
+            stats.exit( cmd, io, start );
+        }
+    }
+
+    private static int dispatch( int irq, int cmd, int param, Object args ) {
 
         switch( irq ) {
             case INTERRUPT_SOFTWARE: // System calls
@@ -81,18 +120,57 @@ public class Kernel
                         scheduler = new Scheduler( );
                         scheduler.start( );
 
-                        // instantiate and start a disk
-                        disk = new Disk( 1000 );
-                        disk.start( );
-
-                        // instantiate a cache memory
-                        cache = new Cache( disk.blockSize, 10 );
-
                         // instantiate synchronized queues
                         ioQueue = new SyncQueue( );
                         waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
+
+                        String image = System.getProperty( "threados.disk.image" );
+                        if ( image != null ) {
+                            // serve blocks straight from a memory-mapped disk image file
+                            try {
+                                blockDevice = new MappedBlockDevice( image, 1000, Disk.blockSize );
+                            } catch ( IOException e ) {
+                                System.out.println( e );
+                                return ERROR;
+                            }
+                        } else {
+                            // instantiate and start a disk
+                            disk = new Disk( 1000 );
+                            disk.start( );
+
+                            // put a request queue in front of the disk, C-SCAN ordered unless
+                            // -Dthreados.disk.policy=fcfs asks for arrival order
+                            DiskScheduler diskScheduler = new DiskScheduler( disk, ioQueue,
+                                    "fcfs".equals( System.getProperty( "threados.disk.policy" ) ) ?
+                                            DiskScheduler.FCFS : DiskScheduler.CSCAN );
+                            diskScheduler.start( );
+                            blockDevice = diskScheduler;
+                        }
+
+                        // instantiate a write-back cache memory, its size and eviction policy can be
+                        // chosen with -Dthreados.cache.blocks=N and -Dthreados.cache.policy=lru|second-chance
+                        cache = new Cache( Disk.blockSize, Integer.getInteger( "threados.cache.blocks", 64 ),
+                                "lru".equals( System.getProperty( "threados.cache.policy" ) ) ?
+                                        new LruPolicy( ) : new SecondChancePolicy( ) );
+
                         //Instantiate the FileSystem object with 1000 disk blocks
-                        fileSystem = new FileSystem(1000);
+                        try {
+                            fileSystem = new FileSystem(1000, cache);
+                        } catch ( IllegalStateException e ) {
+                            // a disk in the original format that cannot be converted, left as it is
+                            System.out.println( e.getMessage( ) );
+                            return ERROR;
+                        }
+                        stats.attach( fileSystem, cache );
+                        if ( !unmountHooked ) {
+                            // unmount when ThreadOS exits, however it exits, so the next boot skips
+                            // journal recovery; SYNC no longer does it on every call
+                            Runtime.getRuntime( ).addShutdownHook( new Thread( ( ) -> {
+                                fileSystem.unmount( );
+                                blockDevice.sync( );
+                            } ) );
+                            unmountHooked = true;
+                        }
                         return OK;
                     case EXEC:
                         return sysExec( ( String[] )args );
@@ -120,41 +198,15 @@ public class Kernel
                         scheduler.sleepThread( param ); // param = milliseconds
                         return OK;
                     case RAWREAD: // read a block of data from disk
-                        while ( disk.read( param, ( byte[] )args ) == false )
-                            ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                        while ( disk.testAndResetReady( ) == false )
-                            ioQueue.enqueueAndSleep( COND_DISK_FIN );
-
-                        // it's possible that a thread waiting to make a request was released by the disk,
-                        // but then promptly looped back, found the buffer wasn't available for sending (bufferReady == true)
-                        // and then went back to sleep
-                        Kernel.ioQueue.dequeueAndWakeup(Kernel.COND_DISK_REQ);
-
-                        // now you can access data in buffer
-                        return OK;
+                        // queued behind other threads' requests and served in elevator order
+                        return blockDevice.read( param, ( byte[] )args ) ? OK : ERROR;
                     case RAWWRITE: // write a block of data to disk
-                        while ( disk.write( param, ( byte[] )args ) == false )
-                            ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                        while ( disk.testAndResetReady( ) == false )
-                            ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                        // it's possible that a thread waiting to make a request was released by the disk,
-                        // but then promptly looped back, found the buffer wasn't available for sending (bufferReady == true)
-                        // and then went back to sleep
-                        Kernel.ioQueue.dequeueAndWakeup(Kernel.COND_DISK_REQ);
-
-                        return OK;
+                        return blockDevice.write( param, ( byte[] )args ) ? OK : ERROR;
                     case SYNC:     // synchronize disk data to a real file
-                        fileSystem.sync();
-                        while ( disk.sync( ) == false )
-                            ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                        while ( disk.testAndResetReady( ) == false )
-                            ioQueue.enqueueAndSleep( COND_DISK_FIN );
-
-                        // it's possible that a thread waiting to make a request was released by the disk,
-                        // but then promptly looped back, found the buffer wasn't available for sending (bufferReady == true)
-                        // and then went back to sleep
-                        Kernel.ioQueue.dequeueAndWakeup(Kernel.COND_DISK_REQ);
-                        return OK;
+                        // commits what is staged; the disk is left marked clean only at shutdown
+                        fileSystem.sync( );
+                        // the device sync returns once every write issued before it is durable
+                        return blockDevice.sync( ) ? OK : ERROR;
                     case READ:
                         switch ( param ) {
                             case STDIN:
@@ -184,6 +236,11 @@ public class Kernel
                                 if ((myTcb = scheduler.getMyTcb()) != null) { //If the tcb actually exists
                                     ftEnt = myTcb.getFtEnt(param); //Get the file table entry
                                     if (ftEnt != null) { //If the file table entry exists
+                                        if (args instanceof ByteBuffer) { //read straight into the caller's buffer
+                                            return fileSystem.read(ftEnt, (ByteBuffer)args);
+                                        } else if (args instanceof ByteBuffer[]) { //scatter read
+                                            return fileSystem.read(ftEnt, (ByteBuffer[])args);
+                                        }
                                         return fileSystem.read(ftEnt, ((byte[])args)); //Read from the file table entry
                                     }
                                 }
@@ -206,6 +263,11 @@ public class Kernel
                                 if ((myTcb = scheduler.getMyTcb()) != null) { //If the tcb actually exists
                                     ftEnt = myTcb.getFtEnt(param); //Get the file table entry
                                     if (ftEnt != null) { //If the file table entry exists
+                                        if (args instanceof ByteBuffer) { //write straight from the caller's buffer
+                                            return fileSystem.write(ftEnt, (ByteBuffer)args);
+                                        } else if (args instanceof ByteBuffer[]) { //gather write
+                                            return fileSystem.write(ftEnt, (ByteBuffer[])args);
+                                        }
                                         return fileSystem.write(ftEnt, ((byte[])args)); //Write to the file
                                     }
                                 }
@@ -264,6 +326,61 @@ public class Kernel
                         return (fileSystem.format(param) == true) ? OK : ERROR; //Return OK if the format was successful
                     case DELETE:  // to be implemented in project
                         return (fileSystem.delete((String)args) == true) ? OK : ERROR; //Return OK if the delete was successful
+                    case PREAD:   // positional read, the seek pointer is left alone
+                    case PWRITE:  // positional write
+                        if ((myTcb = scheduler.getMyTcb()) != null) { //If the TCB actually exists
+                            Object[] posArgs = (Object[])args; //the buffer and the file offset
+                            ftEnt = myTcb.getFtEnt(param);
+                            if (ftEnt != null && param > STDERR) {
+                                ByteBuffer buffer = (ByteBuffer)posArgs[0];
+                                int offset = (Integer)posArgs[1];
+                                return (cmd == PREAD) ? fileSystem.pread(ftEnt, buffer, offset)
+                                        : fileSystem.pwrite(ftEnt, buffer, offset);
+                            }
+                        }
+                        return ERROR; //no such open file
+                    case MKDIR:   // create an empty directory
+                        return fileSystem.mkdir( (String)args ) ? OK : ERROR;
+                    case RMDIR:   // remove an empty directory
+                        return fileSystem.rmdir( (String)args ) ? OK : ERROR;
+                    case READDIR: // list a directory into the caller's list, returns the number of names
+                        Object[] dirArgs = (Object[])args; //the path and the list to fill
+                        String[] names = fileSystem.readdir( (String)dirArgs[0] );
+                        if ( names == null ) {
+                            return ERROR;
+                        }
+                        if ( !( dirArgs[1] instanceof List ) ) {
+                            return ERROR; //not a list to fill
+                        }
+                        @SuppressWarnings( "unchecked" ) // SysLib.readdir only ever passes a List<String>
+                        List<String> dirNames = ( List<String> )dirArgs[1];
+                        dirNames.addAll( Arrays.asList( names ) );
+                        return names.length;
+                    case STATS:   // fill the caller's map with the kernel counters, returns how many
+                        if ( !( args instanceof Map ) ) {
+                            return ERROR; //not a map to fill
+                        }
+                        @SuppressWarnings( "unchecked" ) // SysLib.stats only ever passes a Map<String, Long>
+                        Map<String, Long> counters = ( Map<String, Long> )args;
+                        return stats.snapshot( counters );
+                    case SEEKREAD: // seek from the top of the file and read from there, in one call
+                        if ((myTcb = scheduler.getMyTcb()) != null) {
+                            Object[] readArgs = (Object[])args; //the file offset and the buffer
+                            ftEnt = myTcb.getFtEnt(param);
+                            if (ftEnt != null && param > STDERR) {
+                                return fileSystem.seekAndRead(ftEnt, (Integer)readArgs[0], (byte[])readArgs[1]);
+                            }
+                        }
+                        return ERROR; //no such open file
+                    case FHANDLE: // hand out a handle on an open file, in the caller's one-element array
+                        if ((myTcb = scheduler.getMyTcb()) != null) {
+                            ftEnt = myTcb.getFtEnt(param);
+                            if (ftEnt != null && param > STDERR) {
+                                ( (FileHandle[])args )[0] = new FileHandle( param, ftEnt, fileSystem );
+                                return OK;
+                            }
+                        }
+                        return ERROR; //no such open file
                 }
                 return ERROR;
             case INTERRUPT_DISK: // Disk interrupts
@@ -0,0 +1,162 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+//Counters for every system call: how often it was made, a latency histogram, and the disk blocks read and written
+//while it ran. Block I/O is charged to the outermost system call of the thread that did it, so a READ that misses
+//the cache is charged with the RAWREADs its CREADs caused. Counters are striped and histograms lock-free, cheap
+//enough to leave on; -Dthreados.stats=false turns recording off. Read through SysLib.stats or over JMX.
+public class KernelStats implements KernelStatsMBean {
+    public final static boolean ENABLED = !"false".equals(System.getProperty("threados.stats"));
+    private final static int SYSCALLS = 32;
+    private final static String[] NAMES = {
+        "boot", "exec", "wait", "exit", "sleep", "rawread", "rawwrite", "sync", "read", "write",
+        "cread", "cwrite", "csync", "cflush", "open", "close", "size", "seek", "format", "delete",
+        "pread", "pwrite", "mkdir", "rmdir", "readdir", "stats", "seekread", "fhandle"
+    };
+
+    private final LongAdder[] calls = new LongAdder[SYSCALLS];
+    private final LongAdder[] blockReads = new LongAdder[SYSCALLS];
+    private final LongAdder[] blockWrites = new LongAdder[SYSCALLS];
+    private final LatencyHistogram[] latency = new LatencyHistogram[SYSCALLS];
+    private final LongAdder rawReads = new LongAdder();
+    private final LongAdder rawWrites = new LongAdder();
+    //per thread: system call nesting depth, and blocks read and written since the outermost one began
+    private final ThreadLocal<long[]> tally = ThreadLocal.withInitial(() -> new long[3]);
+    private volatile FileSystem fileSystem;
+    private volatile Cache cache;
+
+    public KernelStats() {
+        for (int i = 0; i < SYSCALLS; i++) {
+            calls[i] = new LongAdder();
+            blockReads[i] = new LongAdder();
+            blockWrites[i] = new LongAdder();
+            latency[i] = new LatencyHistogram();
+        }
+    }
+
+    //The file system and cache whose gauges are reported, and registration with the platform MBean server
+    public void attach(FileSystem fileSystem, Cache cache) {
+        this.fileSystem = fileSystem;
+        this.cache = cache;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("ThreadOS:type=KernelStats");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            SysLib.cerr("ThreadOS: kernel statistics not available over JMX: " + e + "\n");
+        }
+    }
+
+    //Called as system call cmd starts, returns the calling thread's tally for exit
+    public long[] enter(int cmd) {
+        long[] io = tally.get();
+        if (io[0]++ == 0) {
+            io[1] = io[2] = 0;
+        }
+        if (cmd == Kernel.RAWREAD) {
+            io[1]++;
+            rawReads.increment();
+        } else if (cmd == Kernel.RAWWRITE) {
+            io[2]++;
+            rawWrites.increment();
+        }
+        return io;
+    }
+
+    //Called as system call cmd returns, with what enter returned and the System.nanoTime it started at
+    public void exit(int cmd, long[] io, long start) {
+        int i = index(cmd);
+        calls[i].increment();
+        latency[i].record(System.nanoTime() - start);
+        if (--io[0] == 0) {
+            blockReads[i].add(io[1]);
+            blockWrites[i].add(io[2]);
+        }
+    }
+
+    //Adds every counter and gauge to into under its name and returns how many there are. Per system call:
+    //<name>.calls, .meanNanos, .p50Nanos, .p99Nanos, .p999Nanos, .blocksRead and .blocksWritten
+    public int snapshot(Map<String, Long> into) {
+        int before = into.size();
+        for (int i = 0; i < SYSCALLS; i++) {
+            long n = calls[i].sum();
+            if (n == 0) {
+                continue;
+            }
+            String name = (i < NAMES.length) ? NAMES[i] : "syscall" + i;
+            into.put(name + ".calls", n);
+            into.put(name + ".meanNanos", latency[i].mean());
+            into.put(name + ".p50Nanos", latency[i].percentile(0.5));
+            into.put(name + ".p99Nanos", latency[i].percentile(0.99));
+            into.put(name + ".p999Nanos", latency[i].percentile(0.999));
+            into.put(name + ".blocksRead", blockReads[i].sum());
+            into.put(name + ".blocksWritten", blockWrites[i].sum());
+        }
+        into.put("disk.rawReads", rawReads.sum());
+        into.put("disk.rawWrites", rawWrites.sum());
+        Cache c = cache;
+        if (c != null) {
+            into.put("cache.hits", c.hits());
+            into.put("cache.misses", c.misses());
+            into.put("cache.prefetchIssued", c.prefetchIssued());
+            into.put("cache.prefetchHits", c.prefetchHits());
+            into.put("cache.prefetchWastes", c.prefetchWastes());
+        }
+        FileSystem fs = fileSystem;
+        if (fs != null) {
+            fs.stats(into);
+        }
+        return into.size() - before;
+    }
+
+    public long getRawReads() {
+        return rawReads.sum();
+    }
+
+    public long getRawWrites() {
+        return rawWrites.sum();
+    }
+
+    public long getCacheHits() {
+        Cache c = cache;
+        return (c == null) ? 0 : c.hits();
+    }
+
+    public long getCacheMisses() {
+        Cache c = cache;
+        return (c == null) ? 0 : c.misses();
+    }
+
+    public double getCacheHitRatio() {
+        long hits = getCacheHits();
+        long total = hits + getCacheMisses();
+        return (total == 0) ? 0 : (double)hits / total;
+    }
+
+    public int getFreeBlocks() {
+        FileSystem fs = fileSystem;
+        return (fs == null) ? 0 : fs.freeBlocks();
+    }
+
+    public int getOpenFiles() {
+        FileSystem fs = fileSystem;
+        return (fs == null) ? 0 : fs.openFiles();
+    }
+
+    public Map<String, Long> getStats() {
+        TreeMap<String, Long> stats = new TreeMap<String, Long>();
+        snapshot(stats);
+        return stats;
+    }
+
+    private static int index(int cmd) {
+        return (cmd >= 0 && cmd < SYSCALLS) ? cmd : SYSCALLS - 1;
+    }
+}
@@ -0,0 +1,22 @@
+import java.util.Map;
+
+//Management interface of KernelStats, registered with the platform MBean server as ThreadOS:type=KernelStats
+public interface KernelStatsMBean {
+    long getRawReads();
+
+    long getRawWrites();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    //Fraction of cached block reads and writes that found their block in the cache
+    double getCacheHitRatio();
+
+    int getFreeBlocks();
+
+    int getOpenFiles();
+
+    //Everything at once, the same names SysLib.stats fills in
+    Map<String, Long> getStats();
+}
@@ -0,0 +1,75 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//Lock-free latency histogram with HDR-style log-linear buckets: every power of two is split into SUB_BUCKETS equal
+//parts, so any recorded value is reported within 1/SUB_BUCKETS (12.5%) of what it was, from 1 ns up to the largest
+//long. Recording is one atomic add on the bucket plus two striped adds, and never allocates.
+public class LatencyHistogram {
+    private final static int SUB_BITS = 3;
+    private final static int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucket(nanos));
+        count.increment();
+        total.add(nanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    //Mean of everything recorded, 0 if nothing was
+    public long mean() {
+        long n = count.sum();
+        return (n == 0) ? 0 : total.sum() / n;
+    }
+
+    //The value below which the given fraction (0 to 1) of the recorded values fall, as the upper edge of its bucket
+    public long percentile(double fraction) {
+        long n = 0;
+        long[] snapshot = new long[buckets.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = buckets.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(1, rank)) {
+                return upperEdge(i);
+            }
+        }
+        return upperEdge(snapshot.length - 1);
+    }
+
+    //Values below SUB_BUCKETS get a bucket each, larger ones go by their highest bit and the SUB_BITS below it
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value); //at least SUB_BITS
+        int sub = (int)(value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperEdge(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long low = (1L << magnitude) + (sub << (magnitude - SUB_BITS));
+        return low + (1L << (magnitude - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,24 @@
+//Least-recently-used eviction: every access stamps the frame with a logical clock and the oldest stamp loses
+public class LruPolicy implements EvictionPolicy {
+    private long[] lastUsed; //logical time of the last access per frame
+    private long clock;      //monotonically increasing access counter
+
+    public void reset(int frames) {
+        lastUsed = new long[frames];
+        clock = 0;
+    }
+
+    public void access(int frame) {
+        lastUsed[frame] = ++clock;
+    }
+
+    public int victim(boolean[] dirty) {
+        int oldest = 0;
+        for (int i = 1; i < lastUsed.length; i++) { //linear scan is fine for the frame counts we run with
+            if (lastUsed[i] < lastUsed[oldest]) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+//Block device backed by a disk image file mapped into memory. Reads and writes are plain memory copies done by the
+//calling thread, with no handoff to a disk thread, and sync() forces the mapped pages out to the file.
+public class MappedBlockDevice implements BlockDevice {
+    private final int blockSize;
+    private final int totalBlocks;
+    private final MappedByteBuffer image; //the whole image; only ever accessed through duplicates
+
+    //Opens (creating or growing it if needed) an image of totalBlocks blocks of blockSize bytes and maps it
+    public MappedBlockDevice(String path, int totalBlocks, int blockSize) throws IOException {
+        this.blockSize = blockSize;
+        this.totalBlocks = totalBlocks;
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            image = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long)totalBlocks * blockSize);
+        } finally {
+            file.close(); //the mapping stays valid after the channel is closed
+        }
+    }
+
+    public boolean read(int blockId, byte[] buffer) {
+        if (blockId < 0 || blockId >= totalBlocks) {
+            return false;
+        }
+        ByteBuffer view = image.duplicate(); //private position, so concurrent callers never interfere
+        view.position(blockId * blockSize);
+        view.get(buffer, 0, blockSize);
+        return true;
+    }
+
+    public boolean write(int blockId, byte[] buffer) {
+        if (blockId < 0 || blockId >= totalBlocks) {
+            return false;
+        }
+        ByteBuffer view = image.duplicate();
+        view.position(blockId * blockSize);
+        view.put(buffer, 0, blockSize);
+        return true;
+    }
+
+    public boolean sync() {
+        image.force();
+        return true;
+    }
+}
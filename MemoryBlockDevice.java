@@ -0,0 +1,54 @@
+import java.util.concurrent.atomic.LongAdder;
+
+//Block device kept entirely in memory, nothing survives the JVM. Reads and writes are array copies done by the
+//calling thread. It counts every block transferred, which makes it the stand-in disk for measuring how much I/O
+//the file system does without the simulated disk's latency in the way.
+public class MemoryBlockDevice implements BlockDevice {
+    private final int blockSize;
+    private final byte[][] blocks;
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    public MemoryBlockDevice(int totalBlocks, int blockSize) {
+        this.blockSize = blockSize;
+        blocks = new byte[totalBlocks][blockSize];
+    }
+
+    public boolean read(int blockId, byte[] buffer) {
+        if (blockId < 0 || blockId >= blocks.length) {
+            return false;
+        }
+        byte[] block = blocks[blockId];
+        synchronized (block) { //a block is never seen half written
+            System.arraycopy(block, 0, buffer, 0, blockSize);
+        }
+        reads.increment();
+        return true;
+    }
+
+    public boolean write(int blockId, byte[] buffer) {
+        if (blockId < 0 || blockId >= blocks.length) {
+            return false;
+        }
+        byte[] block = blocks[blockId];
+        synchronized (block) {
+            System.arraycopy(buffer, 0, block, 0, blockSize);
+        }
+        writes.increment();
+        return true;
+    }
+
+    public boolean sync() {
+        return true; //nothing to make durable
+    }
+
+    //Blocks read so far
+    public long reads() {
+        return reads.sum();
+    }
+
+    //Blocks written so far
+    public long writes() {
+        return writes.sum();
+    }
+}
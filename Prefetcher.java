@@ -0,0 +1,54 @@
+import java.util.ArrayDeque;
+
+//Background read-ahead for the block cache. FileSystem.read hands it the disk blocks it expects a sequential reader
+//to ask for next, and this daemon thread pulls them into the cache while the reader is still busy with the current
+//ones. The queue is bounded: when the disk cannot keep up, new hints are dropped rather than queued behind stale ones.
+public class Prefetcher extends Thread {
+    private final static int MAX_PENDING = 64;  //hints waiting to be fetched
+
+    private final Cache cache;
+    private final ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+    private final byte[] buffer;                //one block, the only place this thread reads into
+    private boolean shutDown;                   //set by shutdown, the thread ends
+
+    public Prefetcher(Cache cache, int blockSize) {
+        this.cache = cache;
+        buffer = new byte[blockSize];
+        setDaemon(true);
+    }
+
+    //Queues blockId to be brought into the cache and returns at once, false if the hint was dropped
+    public synchronized boolean submit(int blockId) {
+        if (pending.size() >= MAX_PENDING) {
+            return false;
+        }
+        pending.addLast(blockId);
+        notify(); //wake the thread if it is idle
+        return true;
+    }
+
+    //Drops the hints still queued and ends the thread once it is done with the block it is fetching
+    public synchronized void shutdown() {
+        shutDown = true;
+        pending.clear();
+        notify();
+    }
+
+    public void run() {
+        for (int blockId = next(); blockId >= 0; blockId = next()) {
+            cache.prefetch(blockId, buffer);
+        }
+    }
+
+    //The next block to fetch, -1 once shut down
+    private synchronized int next() {
+        while (pending.isEmpty() && !shutDown) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                //keep going, the prefetcher lives until the file system shuts it down
+            }
+        }
+        return shutDown ? -1 : pending.removeFirst();
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.ArrayDeque;
+
+//Frees the blocks of truncated and deleted files in the background. Truncation only detaches a file's index trees
+//(Inode.detachIndexBlocks) and records their roots on the superblock's orphan list, which is committed along with
+//the emptied inode; this daemon thread then walks each orphan tree, reading its index blocks, and hands all of its
+//blocks back in one batch through SuperBlock.reclaimOrphan, which drops the orphan in the same step. A crash at any
+//point leaves either the orphan on disk, picked up again at the next mount, or its blocks free, never both.
+public class Reclaimer extends Thread {
+    private final SuperBlock superblock;
+    private final ArrayDeque<int[]> pending = new ArrayDeque<int[]>();
+    private boolean busy;                      //an orphan has been taken and is not freed yet
+    private boolean shutDown;                  //set by shutdown, the thread ends once the queue is empty
+
+    public Reclaimer(SuperBlock superblock) {
+        this.superblock = superblock;
+        setDaemon(true);
+    }
+
+    //Records roots on the orphan list and queues them for freeing. Returns false when the orphan list is full; the
+    //tree has not been recorded then and the caller frees it itself
+    public synchronized boolean submit(int[] roots) {
+        if (!superblock.addOrphan(roots)) {
+            return false;
+        }
+        pending.addLast(roots);
+        notifyAll();
+        return true;
+    }
+
+    //Queues orphans already on the list, the ones read from disk at mount
+    public synchronized void resume(int[][] orphans) {
+        for (int i = 0; i < orphans.length; i++) {
+            pending.addLast(orphans[i]);
+        }
+        notifyAll();
+    }
+
+    //Waits until every queued orphan is freed, used before a clean unmount
+    public synchronized void drain() {
+        while (busy || !pending.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                //keep waiting, the caller needs the queue empty
+            }
+        }
+    }
+
+    //Ends the thread once every queued orphan is freed. Orphans submitted later stay on the list for the next mount
+    public synchronized void shutdown() {
+        shutDown = true;
+        notifyAll();
+    }
+
+    public void run() {
+        for (int[] roots = next(); roots != null; roots = next()) {
+            try {
+                superblock.reclaimOrphan(roots, Inode.detachedBlocks(roots, superblock.version, superblock.journal));
+            } finally {
+                done();
+            }
+        }
+    }
+
+    //The next orphan to free, null once shut down with nothing queued
+    private synchronized int[] next() {
+        while (pending.isEmpty() && !shutDown) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                //keep going, the reclaimer lives until the file system shuts it down
+            }
+        }
+        if (pending.isEmpty()) {
+            return null;
+        }
+        busy = true;
+        return pending.removeFirst();
+    }
+
+    private synchronized void done() {
+        busy = false;
+        notifyAll(); //wake drain
+    }
+}
@@ -0,0 +1,33 @@
+//Enhanced second-chance (clock) eviction: frames are ranked by their (reference, dirty) pair and the clock hand
+//looks for the cheapest class first, so a clean frame nobody touched recently is preferred over a dirty one
+public class SecondChancePolicy implements EvictionPolicy {
+    private boolean[] reference; //reference bit per frame, set on every access
+    private int hand;            //the clock hand, always the next frame to inspect
+
+    public void reset(int frames) {
+        reference = new boolean[frames];
+        hand = 0;
+    }
+
+    public void access(int frame) {
+        reference[frame] = true;
+    }
+
+    public int victim(boolean[] dirty) {
+        //At most four sweeps: (0,0) then (0,1) while clearing reference bits, then the same two again
+        for (int pass = 0; pass < 4; pass++) {
+            boolean wantDirty = (pass % 2) == 1; //odd passes accept dirty frames
+            for (int i = 0; i < reference.length; i++) {
+                int frame = hand;
+                hand = (hand + 1) % reference.length;
+                if (!reference[frame] && dirty[frame] == wantDirty) {
+                    return frame; //found the cheapest class available
+                }
+                if (wantDirty) {
+                    reference[frame] = false; //give the frame its second chance
+                }
+            }
+        }
+        return hand; //unreachable once all reference bits are cleared, kept for safety
+    }
+}
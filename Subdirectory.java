@@ -0,0 +1,107 @@
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//In-memory contents of one directory below the root. On disk a subdirectory is an ordinary file holding a list of
+//variable-length entries, each a 2-byte iNumber, a 2-byte name length and that many bytes of UTF-8 name. The first
+//entry is always ".." and names the parent. The file is decoded whole the first time the directory is used and
+//written back whole by the next sync after it changed.
+public class Subdirectory {
+    public final static int MAX_NAME_BYTES = 255;   //longest name a subdirectory entry can hold
+    private final static String PARENT = "..";
+    private final static int BYTES_IN_A_SHORT = 2;
+
+    private final LinkedHashMap<String, Short> entries = new LinkedHashMap<String, Short>(); //in file order
+    public boolean dirty;                           //true if the file on disk does not match entries yet
+
+    //A new, empty directory inside parent
+    public Subdirectory(short parent) {
+        entries.put(PARENT, parent);
+        dirty = true;
+    }
+
+    //Decodes a directory file read from disk
+    public Subdirectory(byte[] data) {
+        int offset = 0;
+        while (offset + 2 * BYTES_IN_A_SHORT <= data.length) {
+            short iNumber = SysLib.bytes2short(data, offset);
+            int length = SysLib.bytes2short(data, offset + BYTES_IN_A_SHORT);
+            offset += 2 * BYTES_IN_A_SHORT;
+            if (length <= 0 || offset + length > data.length) {
+                break; //the rest of the file is not a complete entry
+            }
+            entries.put(new String(data, offset, length, StandardCharsets.UTF_8), iNumber);
+            offset += length;
+        }
+        dirty = false;
+    }
+
+    //The iNumber of the directory this one is in
+    public short parent() {
+        return entries.get(PARENT);
+    }
+
+    //Returns the iNumber stored under name, or -1 if there is no such entry
+    public short lookup(String name) {
+        Short iNumber = entries.get(name);
+        return (iNumber == null) ? (short)-1 : iNumber;
+    }
+
+    //Adds an entry, false if the name is taken
+    public boolean add(String name, short iNumber) {
+        if (entries.containsKey(name)) {
+            return false;
+        }
+        entries.put(name, iNumber);
+        dirty = true;
+        return true;
+    }
+
+    //Removes an entry, false if there is none
+    public boolean remove(String name) {
+        if (PARENT.equals(name) || entries.remove(name) == null) {
+            return false;
+        }
+        dirty = true;
+        return true;
+    }
+
+    //True if nothing but ".." is left
+    public boolean isEmpty() {
+        return entries.size() == 1;
+    }
+
+    //The names of the entries, ".." left out
+    public String[] names() {
+        String[] names = new String[entries.size() - 1];
+        int i = 0;
+        for (String name : entries.keySet()) {
+            if (!PARENT.equals(name)) {
+                names[i++] = name;
+            }
+        }
+        return names;
+    }
+
+    //Serializes the entries into the on-disk layout
+    public byte[] toBytes() {
+        int size = 0;
+        byte[][] names = new byte[entries.size()][];
+        int i = 0;
+        for (String name : entries.keySet()) {
+            names[i] = name.getBytes(StandardCharsets.UTF_8);
+            size += 2 * BYTES_IN_A_SHORT + names[i++].length;
+        }
+        byte[] data = new byte[size];
+        int offset = 0;
+        i = 0;
+        for (Map.Entry<String, Short> entry : entries.entrySet()) {
+            SysLib.short2bytes(entry.getValue(), data, offset);
+            SysLib.short2bytes((short)names[i].length, data, offset + BYTES_IN_A_SHORT);
+            offset += 2 * BYTES_IN_A_SHORT;
+            System.arraycopy(names[i], 0, data, offset, names[i].length);
+            offset += names[i++].length;
+        }
+        return data;
+    }
+}
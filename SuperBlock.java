@@ -1,110 +1,566 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
 public class SuperBlock {
     private final int defaultInodeBlocks = 64;
     public int totalBlocks; //the number of disk blocks
     public int inodeBlocks; //the number of inodes
-    public int freeList;   //the block number of the free list's head
+    public int bitmapStart; //the block number of the first free-space bitmap block
+    public int freeBlocks;  //the number of data blocks currently free
+    public int version;     //on-disk inode format, Inode.VERSION_1, VERSION_2 or VERSION_3
+    public int journalStart;  //the first block of the metadata journal region
+    public int journalBlocks; //the size of the journal region, 0 on disks formatted without one
+    public Journal journal;   //every metadata block write goes through here
+    public boolean clean;     //the disk was cleanly unmounted and nothing was committed since, its journal is empty
     public final static int BYTES_IN_AN_INT = 4;
+    private final static int MAX_BLOCK_SIZE_BYTES = 512;
+    private final static int BITS_PER_WORD = 64;
+    private final static int WORDS_PER_BLOCK = MAX_BLOCK_SIZE_BYTES / 8; //64 longs fill one bitmap block
+    private final static int BITS_PER_BLOCK = WORDS_PER_BLOCK * BITS_PER_WORD;
+    private final static int MAGIC = 0x54424D50; //marks a disk formatted with the bitmap layout
+    private final static int CLEAN = 0x434C4E55; //at offset 32 after a clean unmount, anything else means in use
+    private final static int MIN_JOURNAL_BLOCKS = 16;
+    private final static int MAX_JOURNAL_BLOCKS = 1024;
+    private final static int ORPHANS_OFFSET = 9 * BYTES_IN_AN_INT; //orphan count at 36, the records follow it
+    private final static int ORPHAN_ROOTS = 3;  //single, double and triple indirect root of a detached tree
+    private final static int MAX_ORPHANS = (MAX_BLOCK_SIZE_BYTES - ORPHANS_OFFSET - BYTES_IN_AN_INT)
+            / (ORPHAN_ROOTS * BYTES_IN_AN_INT);
+
+    //Free-space bitmap, one bit per disk block, set when the block is in use. Blocks below dataStart (superblock,
+    //inodes and the bitmap itself) are always set.
+    private long[] bitmap;
+    private boolean[] bitmapDirty; //one flag per bitmap block that changed since the last sync
+    private int dataStart;         //the first block that can be handed out to files
+    private int searchHint;        //the lowest bitmap word that may still have a free bit
+    //Blocks freed since the last commit. With a journal they stay marked used until the transaction freeing them
+    //is committed, so nothing the metadata on disk still points at is handed out and overwritten in the meantime
+    private long[] freedBitmap;
+    private long[] takenBitmap;    //the blocks of freedBitmap taken by takeFreed, free in every bitmap image staged
+    private int[] freed = new int[16];
+    private int freedCount;
+    private byte[] staged;         //the superblock as last staged, an unchanged one is not staged again
+    private byte[] home;           //block 0 as it is on disk while clean, the last committed superblock
+    //Index trees detached from truncated files, still allocated until the Reclaimer frees them. orphanImage is the
+    //list as of the last takeFreed, what the superblock on disk shows, so a committed orphan and the committed
+    //frees of its blocks never disagree
+    private final ArrayList<int[]> orphans = new ArrayList<int[]>();
+    private int[][] orphanImage = new int[0][];
 
     //Initializes the data of a superblock using the disksize parameter passed in, which represents the number of blocks on disk
-    //Assigns values to totalBlocks, inodeBlocks, and freeList byt comverting the byte data read from the disk into ints and
+    //Assigns values to totalBlocks, inodeBlocks and bitmapStart by converting the byte data read from the disk into ints and
     //assigning the values to the appropriate vairables, also error checks for disk contents and formats if necessary
     public SuperBlock(int diskSize) {
         int offset = 0; //Initialize an offset for incrementing with bytes to int
-        byte[] superBlock = new byte[512];  //superBlock array size is 512 because that is the max disk block size
-        SysLib.rawread(offset, superBlock); //Read data from the disk from offset and store it in superBlock
+        byte[] superBlock = new byte[MAX_BLOCK_SIZE_BYTES];  //superBlock array size is 512 because that is the max disk block size
+        SysLib.cread(offset, superBlock); //Read data from the disk from offset and store it in superBlock
         totalBlocks = SysLib.bytes2int(superBlock, offset); //Convert the bytes in superBlock to an int to represent the total blocks
         offset += BYTES_IN_AN_INT;          //Increment offset by 4 because that is the number of bytes in an int
         inodeBlocks = SysLib.bytes2int(superBlock, offset); //Convert the bytes in superblock from index 4 to an int to represent inodeBlocks
         offset += BYTES_IN_AN_INT;           //Increment offset by 4 because that is the number of bytes in an int
-        freeList = SysLib.bytes2int(superBlock, offset);//Convert the bytes in superblock from index 8 to an int to represent freeList
+        bitmapStart = SysLib.bytes2int(superBlock, offset);//Convert the bytes in superblock from index 8 to an int to represent bitmapStart
+        offset += BYTES_IN_AN_INT;
+        int magic = SysLib.bytes2int(superBlock, offset);   //Index 12 tells a bitmap-formatted disk from the old free list layout
+        version = SysLib.bytes2int(superBlock, 5 * BYTES_IN_AN_INT); //Index 20 is the inode format
+        if (version == 0) {
+            version = Inode.VERSION_1; //disks formatted before the field existed use the original 32-byte inodes
+        }
+        journalStart = SysLib.bytes2int(superBlock, 6 * BYTES_IN_AN_INT);  //Index 24 and 28 locate the journal,
+        journalBlocks = SysLib.bytes2int(superBlock, 7 * BYTES_IN_AN_INT); //both 0 on disks without one
+        clean = SysLib.bytes2int(superBlock, 8 * BYTES_IN_AN_INT) == CLEAN; //Index 32 is the clean unmount flag
         //Validates the contents of the disk by ensuring that the total blocks match up with the disk size, that iNode blocks is greater than 0
-        //and that the block number of the free list's head is greater than 1
-        if(totalBlocks != diskSize || inodeBlocks <= 0 || freeList < 2) {
+        //and that the bitmap sits right after the inode blocks. Anything else without the magic number is formatted.
+        if (totalBlocks == diskSize && inodeBlocks > 0 && magic == 0 && bitmapStart >= 2 && bitmapStart <= totalBlocks) {
+            //Index 8 is the head of the free list on a disk formatted with the original layout, which the original
+            //code accepted just like this. Its files are kept, the free list is turned into a bitmap
+            convertFreeList();
+        } else if(totalBlocks != diskSize || inodeBlocks <= 0 || magic != MAGIC
+                || version < Inode.VERSION_1 || version > Inode.VERSION_3
+                || bitmapStart != layoutBitmapStart(inodeBlocks, version)
+                || journalBlocks < 0 || (journalBlocks > 0 && journalStart != bitmapStart + bitmapBlockCount())) {
             //If the contents aren't valid, set the total blocks to disk size and format the disk
             totalBlocks = diskSize;
+            clean = false;
             format(defaultInodeBlocks);
+        } else {
+            journal = new Journal(journalStart, journalBlocks); //replayed by the file system before it is used
+            journal.beforeLog(this::markDirty);
+            loadBitmap(); //A valid disk only needs its bitmap blocks read, one pass, no data blocks touched
+            loadOrphans(superBlock);
+            staged = superBlockBytes(new byte[MAX_BLOCK_SIZE_BYTES], false); //what is on disk, in use
+            home = superBlock.clone();
         }
     }
+
     //Syncs the contents of the superblock to disk by converting all necessary data to byte format within a temporary
-    //byte array and then writing the contents of the array to disk
-    public void sync() {
+    //byte array and then writing the contents of the array to disk, followed by every bitmap block that changed
+    public synchronized void sync() {
+        sync(new int[0]);
+    }
+
+    //Same as sync(), but the written bitmap already shows the given blocks (taken with takeFreed) as free although
+    //they stay allocated in memory until releaseFreed. So do the blocks of earlier takeFreed calls whose transaction
+    //may still be committing, a later image of the same bitmap block must not show them in use again. The blocks
+    //are staged in the journal, not written in place
+    public synchronized void sync(int[] committing) {
+        for (int i = 0; i < committing.length; i++) {
+            bitmapDirty[committing[i] / BITS_PER_BLOCK] = true;
+        }
+        byte[] toDisk = new byte[MAX_BLOCK_SIZE_BYTES];  //Temporary byte array to store converted contents for writing to disk
+        superBlockBytes(toDisk, false);
+        if (!Arrays.equals(toDisk, staged)) { //an idle sync commits nothing and leaves a clean disk clean
+            journal.write(0, toDisk); //Write the converted contents to disk starting at index 0
+            staged = toDisk.clone();
+        }
+
+        //Write back only the bitmap blocks that changed
+        for (int b = 0; b < bitmapDirty.length; b++) {
+            if (bitmapDirty[b]) {
+                bitmapBlockBytes(b, toDisk);
+                journal.write(bitmapStart + b, toDisk);
+                bitmapDirty[b] = false;
+            }
+        }
+    }
+
+    //Writes the last committed superblock in place with the clean unmount flag set. Only called with the journal
+    //empty and every home block on disk, so that is the one last staged; the fields may already be ahead of it.
+    //The first commit after it clears the flag again through markDirty
+    public synchronized void markClean() {
+        byte[] toDisk = staged.clone();
+        SysLib.int2bytes(CLEAN, toDisk, 8 * BYTES_IN_AN_INT);
+        SysLib.cwrite(0, toDisk);
+        SysLib.csync();
+        home = toDisk;
+        clean = true;
+    }
+
+    //Clears the clean unmount flag on disk before anything is committed to the journal, so a crash from here on is
+    //recovered on the next mount. Only the flag changes: the fields and orphans of the transaction about to be
+    //logged are not committed yet, and a crash before the commit record has to find the committed ones in place.
+    //Costs nothing unless the flag is set
+    public synchronized void markDirty() {
+        if (clean) {
+            byte[] toDisk = home.clone();
+            SysLib.int2bytes(0, toDisk, 8 * BYTES_IN_AN_INT);
+            SysLib.cwrite(0, toDisk);
+            SysLib.csync(); //on disk before the log is written
+            clean = false;
+        }
+    }
+
+    //Serializes the superblock fields into toDisk and returns it
+    private byte[] superBlockBytes(byte[] toDisk, boolean cleanFlag) {
         int offset = 0; //Initiallize the offset for incrementing with int to bytes
-        byte[] toDisk = new byte[512];  //Temporary byte array to store converted contents for writing to disk
         SysLib.int2bytes(totalBlocks, toDisk, offset);      //Convert the totalblocks data to bytes and store in toDisk at offset 0
         offset += BYTES_IN_AN_INT; //Increment offset by 4 because that is the number of bytes in an int
         SysLib.int2bytes(inodeBlocks, toDisk, offset); //Convert the inodeBlocks data to bytes and store in toDisk at offset 4
         offset += BYTES_IN_AN_INT; //Increment offset by 4 because that is the number of bytes in an int
-        SysLib.int2bytes(freeList, toDisk, 8); //Convert the freeList data to bytes and store in toDisk at offset 8
-        SysLib.rawwrite(0, toDisk); //Write the converted contents to disk starting at index 0
+        SysLib.int2bytes(bitmapStart, toDisk, offset); //Convert the bitmapStart data to bytes and store in toDisk at offset 8
+        offset += BYTES_IN_AN_INT;
+        SysLib.int2bytes(MAGIC, toDisk, offset);       //Mark the disk as using the bitmap layout at offset 12
+        offset += BYTES_IN_AN_INT;
+        SysLib.int2bytes(freeBlocks, toDisk, offset);  //Informational free block count at offset 16
+        offset += BYTES_IN_AN_INT;
+        SysLib.int2bytes(version, toDisk, offset);     //Inode format at offset 20
+        offset += BYTES_IN_AN_INT;
+        SysLib.int2bytes(journalStart, toDisk, offset);  //Journal region at offsets 24 and 28
+        offset += BYTES_IN_AN_INT;
+        SysLib.int2bytes(journalBlocks, toDisk, offset);
+        offset += BYTES_IN_AN_INT;
+        SysLib.int2bytes(cleanFlag ? CLEAN : 0, toDisk, offset); //Clean unmount flag at offset 32
+        offset += BYTES_IN_AN_INT;
+        SysLib.int2bytes(orphanImage.length, toDisk, offset); //Orphaned index trees from offset 36 on
+        offset += BYTES_IN_AN_INT;
+        for (int i = 0; i < orphanImage.length; i++) {
+            for (int r = 0; r < ORPHAN_ROOTS; r++) {
+                SysLib.int2bytes(orphanImage[i][r], toDisk, offset);
+                offset += BYTES_IN_AN_INT;
+            }
+        }
+        return toDisk;
     }
 
     //Format cleans the disks and completely formats it to its appropriate form if any invalid contents of the disk
-    //are detected by the superblock
-    public void format(int numberOfinodeBlocks) {
+    //are detected by the superblock. Only the superblock, the inode blocks and the bitmap are written; data blocks
+    //are never touched because their state lives entirely in the bitmap. A formatted disk always gets the
+    //current inode format, version 1 disks are only ever mounted as they are.
+    public synchronized void format(int numberOfinodeBlocks) {
         inodeBlocks = numberOfinodeBlocks;  //inode blocks is set to the argument passed, which is set to the default of 64
+        version = Inode.VERSION_3;
+        clean = false;
+        journal = new Journal(0, 0); //the formatted layout is written in place, the journal starts out empty after it
+        int inodesPerBlock = Inode.perBlock(version);
+
+        //Reset every inode to its default, unused state one whole inode block at a time
+        Inode formatInode = new Inode(version, journal);
+        formatInode.flag = 0;
+        byte[] inodeBlock = new byte[MAX_BLOCK_SIZE_BYTES];
+        for (int i = 0; i < inodesPerBlock; i++) {
+            formatInode.toBytes(inodeBlock, i * Inode.size(version));
+        }
+        for (int i = 0; i < inodeBlocks; i += inodesPerBlock) {
+            SysLib.cwrite(1 + (i / inodesPerBlock), inodeBlock);
+        }
+
+        //The bitmap follows the inode blocks, every block before the data area is marked as used
+        bitmapStart = layoutBitmapStart(inodeBlocks, version);
+        journalStart = bitmapStart + bitmapBlockCount(); //The journal follows the bitmap
+        //a sixteenth of the disk unless -Dthreados.journal.blocks=N says otherwise, 0 formats without a journal
+        int defaultJournal = Math.max(MIN_JOURNAL_BLOCKS, Math.min(MAX_JOURNAL_BLOCKS, totalBlocks / 16));
+        journalBlocks = Math.max(0, Math.min(Integer.getInteger("threados.journal.blocks", defaultJournal), totalBlocks / 8));
+        dataStart = journalStart + journalBlocks;
+        bitmap = new long[bitmapBlockCount() * WORDS_PER_BLOCK];
+        bitmapDirty = new boolean[bitmapBlockCount()];
+        freedBitmap = new long[bitmap.length];
+        takenBitmap = new long[bitmap.length];
+        freedCount = 0;
+        orphans.clear(); //their blocks are free again along with everything else
+        orphanImage = new int[0][];
+        for (int b = 0; b < dataStart; b++) {
+            setBit(b);
+        }
+        for (int b = totalBlocks; b < bitmap.length * BITS_PER_WORD; b++) {
+            setBit(b); //bits past the end of the disk can never be handed out
+        }
+        for (int b = 0; b < bitmapDirty.length; b++) {
+            bitmapDirty[b] = true;
+        }
+        freeBlocks = totalBlocks - dataStart;
+        searchHint = dataStart / BITS_PER_WORD;
+        sync(); //Now sync the contents of the superblock to the disk since the disk was formatted correctly
+        journal = new Journal(journalStart, journalBlocks);
+        journal.beforeLog(this::markDirty);
+        journal.format();
+    }
+
+    //Converts a disk formatted with the original linked free list to the bitmap layout in place, keeping its files
+    //and its 32-byte inodes. The free list is not followed: its blocks hold nothing but a next pointer, which the
+    //original code did not always keep right. Instead every block an inode points at, directly or through its
+    //indirect block, is marked used and the rest of the data area free. The bitmap goes into the block the
+    //original layout left unused after the inodes, and on, and the disk gets no journal, there is no room set
+    //aside for one. Throws IllegalStateException, before anything is written, when a pointer is out of range or a
+    //block in use lies where the bitmap has to go; the disk is then not mounted rather than formatted over
+    private void convertFreeList() {
+        version = Inode.VERSION_1;
+        clean = false;
+        journalStart = journalBlocks = 0;
+        journal = new Journal(0, 0); //writes in place, as the original code did
+        int firstData = 2 + inodeBlocks / 16; //where the original layout started the free list
+        bitmapStart = layoutBitmapStart(inodeBlocks, version);
+        dataStart = bitmapStart + bitmapBlockCount();
+        if (dataStart >= totalBlocks) {
+            throw new IllegalStateException("ThreadOS: disk too small for a free-space bitmap, not mounted");
+        }
+        bitmap = new long[bitmapBlockCount() * WORDS_PER_BLOCK];
+        bitmapDirty = new boolean[bitmapBlockCount()];
+        freedBitmap = new long[bitmap.length];
+        takenBitmap = new long[bitmap.length];
+        freedCount = 0;
+        orphans.clear();
+        orphanImage = new int[0][];
+        for (int b = 0; b < dataStart; b++) {
+            setBit(b);
+        }
+        for (int b = totalBlocks; b < bitmap.length * BITS_PER_WORD; b++) {
+            setBit(b); //bits past the end of the disk can never be handed out
+        }
+        for (short i = 0; i < inodeBlocks; i++) {
+            Inode inode = new Inode(i, version, journal);
+            for (int d = 0; d < inode.direct.length; d++) {
+                markConverted(inode.direct[d], firstData, i);
+            }
+            if (inode.indirect >= 0) {
+                markConverted(inode.indirect, firstData, i); //checked before its entries are read
+                int[] blocks = Inode.detachedBlocks(new int[] {inode.indirect}, version, journal);
+                for (int b = 0; b < blocks.length - 1; b++) { //the last one is the indirect block itself
+                    markConverted(blocks[b], firstData, i);
+                }
+            }
+        }
+        freeBlocks = 0;
+        for (int w = 0; w < bitmap.length; w++) {
+            freeBlocks += Long.bitCount(~bitmap[w]);
+        }
+        searchHint = dataStart / BITS_PER_WORD;
+        //the bitmap reaches the disk before the superblock that says it is there
+        byte[] block = new byte[MAX_BLOCK_SIZE_BYTES];
+        for (int b = 0; b < bitmapDirty.length; b++) {
+            SysLib.cwrite(bitmapStart + b, bitmapBlockBytes(b, block));
+            bitmapDirty[b] = false;
+        }
+        SysLib.csync();
+        sync();
+        SysLib.csync();
+        SysLib.cerr("ThreadOS: converted the free list of a disk in the original format to a bitmap\n");
+    }
 
-        //Loop through all of the inodes completely resetting them all to their default values as a part
-        //of reformatting the disk when invalid contents are detected
-        for (int i = 0; i < inodeBlocks; i++) {
-            Inode formatInode = new Inode();
-            formatInode.flag = 0;
-            formatInode.toDisk((short) i);
+    //Marks a block pointer found by convertFreeList as used, -1 is no pointer
+    private void markConverted(int block, int firstData, short iNumber) {
+        if (block < 0) {
+            return;
         }
+        if (block < firstData || block >= totalBlocks) {
+            throw new IllegalStateException("ThreadOS: inode " + iNumber + " points at block " + block
+                    + ", outside the data area, not mounted");
+        }
+        if (block < dataStart) {
+            throw new IllegalStateException("ThreadOS: block " + block + " of inode " + iNumber
+                    + " is where the free-space bitmap goes, not mounted");
+        }
+        setBit(block);
+    }
 
+    //Allocates the lowest free block at or after the search hint by scanning whole 64-bit words, returns -1 when
+    //the disk is full
+    public synchronized int getFreeBlock() {
+        for (int w = searchHint; w < bitmap.length; w++) {
+            if (bitmap[w] != -1L) { //at least one clear bit in this word
+                int freeBlock = w * BITS_PER_WORD + Long.numberOfTrailingZeros(~bitmap[w]);
+                searchHint = w;
+                setBit(freeBlock);
+                freeBlocks--;
+                return freeBlock;
+            }
+        }
+        searchHint = bitmap.length; //nothing free until a block is returned
+        return -1;
+    }
 
-        this.freeList = 2 + (inodeBlocks / 16); //Freelist is reset and initialized to 2 + numer of inode blocks divided by 16
-        //because 16 inodes can be stored in each block
+    //Allocates the free block closest after goal, so a file growing one block at a time stays contiguous.
+    //Falls back to the lowest free block when nothing is free after goal, returns -1 when the disk is full
+    public synchronized int getFreeBlock(int goal) {
+        int freeBlock = nextFree(goal);
+        if (freeBlock < 0) {
+            return getFreeBlock();
+        }
+        setBit(freeBlock);
+        freeBlocks--;
+        return freeBlock;
+    }
 
-        //From free list, go through the total number of blocks to continue formtating the disk
-        for (int i = freeList; i < totalBlocks; i++) {
-            byte[] nothing = new byte[512]; //byte array called nothing because they will all contain default values as a part of formatting
-            //Innter loop for looping though each byte array after it is created assigning the default values as mentioned above
-            for (int j = 0; j < 512; j++) {
-                nothing[j] = 0;
+    //Allocates a run of up to maxLength contiguous free blocks, starting at goal when it is free or otherwise at
+    //the first free block after it. The first block is stored in start[0] and the run length is returned, 0 when
+    //the disk is full
+    public synchronized int allocateRun(int goal, int maxLength, int[] start) {
+        int first = nextFree(goal);
+        if (first < 0) {
+            first = nextFree(dataStart); //wrap around to the lowest free block
+            if (first < 0) {
+                return 0;
             }
-            //Convert the outer loop value into byte format starting at offset 0 and store the bytes into the
-            //temporary nothing byte array
-            SysLib.int2bytes(i + 1, nothing, 0);
-            SysLib.rawwrite(i, nothing);    //Write the contents of the nothing array to disk starting at index i, the value of the outer loop
         }
-        sync(); //Now sync the contents of the superblock to the disk since the disk was formatted correctly
+        int length = 0;
+        while (length < maxLength && first + length < totalBlocks && !testBit(first + length)) {
+            setBit(first + length);
+            length++;
+        }
+        freeBlocks -= length;
+        start[0] = first;
+        return length;
     }
 
-    //Method finds the first free block from within the free list, where the free list's block is at the top
-    public int getFreeBlock() {
-        int freeBlock = freeList; //Assign the return value to the value of freeList
-        //If the freeList location is valid
-        if (freeBlock >= 0) {
-            //ensured that the freeblock copied by freeList is not invalid
-            byte[] toDisk = new byte[512];//Create a byte array to get the contents of the free block
-            SysLib.rawread(freeBlock, toDisk);  //Read the contents from freeList location into the byte array
-            freeList = SysLib.bytes2int(toDisk, 0);//Now update the bytes read from disk into an int and assign it to freeList, as it is updated
-            SysLib.int2bytes(0, toDisk, 0); //Convert the contents back into bytes to write the updated freeList informtion to the disk
-            SysLib.rawwrite(freeBlock, toDisk);//Write the updated information back to disk now
-        }
-        //this will return invalid if the freelist was invalid as error
-        return freeBlock; //Return the value of the free block that was found
-    }
-
-    //Method adds a freed block to the free list, returning an error if the block that is free is not valid
-    public boolean returnBlock(int blockNum) {
-        if(blockNum < 0) {// the blocknumber cannot be in a non indexed location or located backwards
-            return false;//so return false
-        } else {//otherwise we're good we can add the block
-            byte[] addBlock = new byte[512];//create the byte array for the super block to add the free block
-            //iterate for the size of the block and set everything to empty array
-            for (int i = 0; i < addBlock.length; i++) {
-                addBlock[i] = 0;
+    //Finds the first free block at or after goal without allocating it, -1 if there is none
+    private int nextFree(int goal) {
+        if (goal < dataStart) {
+            goal = dataStart;
+        }
+        for (int w = goal / BITS_PER_WORD; w < bitmap.length; w++) {
+            long used = bitmap[w];
+            if (w == goal / BITS_PER_WORD) { //ignore the blocks of the first word that lie before goal
+                used |= (1L << (goal % BITS_PER_WORD)) - 1;
+            }
+            if (used != -1L) {
+                int block = w * BITS_PER_WORD + Long.numberOfTrailingZeros(~used);
+                return (block < totalBlocks) ? block : -1;
             }
-            //convert the contents of the byte array in an integer
-            //just adds a single freed block that's why it only does this once
-            SysLib.int2bytes(freeList, addBlock, 0);
-            //write that block to disk
-            SysLib.rawwrite(blockNum, addBlock);
-            //show where the freedblock is with freelist
-            freeList = blockNum;
-            //return to signify freeing the block to the free list
+        }
+        return -1;
+    }
+
+    //Method adds a freed block back to the bitmap, returning an error if the block that is freed is not valid
+    public synchronized boolean returnBlock(int blockNum) {
+        return returnBlock(blockNum, true);
+    }
+
+    //Gives back a block that was allocated but never referenced by any inode, such as the unused part of a
+    //preallocation window. Nothing on disk can point at it, so it is free again at once instead of at the next commit
+    public synchronized boolean returnUnused(int blockNum) {
+        return returnBlock(blockNum, false);
+    }
+
+    private boolean returnBlock(int blockNum, boolean referenced) {
+        if (blockNum < dataStart || blockNum >= totalBlocks || !testBit(blockNum) || isFreed(blockNum)) {
+            return false; //metadata blocks, blocks off the disk, and double frees are refused
+        }
+        if (referenced && journal.enabled()) { //keep it allocated until the transaction freeing it is committed
+            freedBitmap[blockNum / BITS_PER_WORD] |= 1L << (blockNum % BITS_PER_WORD);
+            if (freedCount == freed.length) {
+                int[] grown = new int[freed.length * 2];
+                System.arraycopy(freed, 0, grown, 0, freedCount);
+                freed = grown;
+            }
+            freed[freedCount++] = blockNum;
+            journal.revoke(blockNum);
             return true;
         }
+        clearBit(blockNum);
+        freeBlocks++;
+        searchHint = Math.min(searchHint, blockNum / BITS_PER_WORD);
+        return true;
+    }
+
+    //Returns every positive block number in blocks under a single lock acquisition, used when a whole tree of
+    //index blocks worth of blocks is freed at once
+    public synchronized int returnBlocks(int[] blocks) {
+        int returned = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i] > 0 && returnBlock(blocks[i])) {
+                returned++;
+            }
+        }
+        return returned;
+    }
+
+    //Adds the roots of an index tree detached from a truncated file (single, double and triple indirect, -1 where
+    //there is none) to the orphan list. The tree stays allocated until reclaimOrphan. Returns false when the list is
+    //full, the caller then frees the tree itself
+    public synchronized boolean addOrphan(int[] roots) {
+        if (orphans.size() >= MAX_ORPHANS) {
+            return false;
+        }
+        orphans.add(roots);
+        return true;
+    }
+
+    //The orphans not reclaimed yet, the ones read at mount included
+    public synchronized int[][] orphans() {
+        return orphans.toArray(new int[orphans.size()][]);
+    }
+
+    //Frees every block of the orphan tree with the given roots, the index blocks included, and drops it from the
+    //orphan list in one step, so the commit that frees the blocks is also the one that forgets the orphan. Returns
+    //false, freeing nothing, if roots is no longer on the list (the disk was formatted in the meantime)
+    public synchronized boolean reclaimOrphan(int[] roots, int[] blocks) {
+        if (!orphans.remove(roots)) {
+            return false;
+        }
+        returnBlocks(blocks);
+        return true;
+    }
+
+    //Takes the blocks freed since the last call. Taken after the inodes are staged, with FileSystem holding off
+    //every truncation until the log write, so the staged bitmap frees exactly what the staged inodes let go of.
+    //The orphan list staged with them is fixed at the same moment
+    public synchronized int[] takeFreed() {
+        orphanImage = orphans.toArray(new int[orphans.size()][]);
+        int[] taken = new int[freedCount];
+        System.arraycopy(freed, 0, taken, 0, freedCount);
+        freedCount = 0;
+        for (int i = 0; i < taken.length; i++) {
+            takenBitmap[taken[i] / BITS_PER_WORD] |= 1L << (taken[i] % BITS_PER_WORD);
+        }
+        return taken;
+    }
+
+    //Makes blocks taken with takeFreed allocatable again, once the transaction freeing them is committed
+    public synchronized void releaseFreed(int[] taken) {
+        for (int i = 0; i < taken.length; i++) {
+            int blockNum = taken[i];
+            freedBitmap[blockNum / BITS_PER_WORD] &= ~(1L << (blockNum % BITS_PER_WORD));
+            takenBitmap[blockNum / BITS_PER_WORD] &= ~(1L << (blockNum % BITS_PER_WORD));
+            clearBit(blockNum);
+            freeBlocks++;
+            searchHint = Math.min(searchHint, blockNum / BITS_PER_WORD);
+        }
+    }
+
+    //Re-reads the bitmap, after a journal replay may have changed it on disk
+    public synchronized void reload() {
+        loadBitmap();
+        byte[] superBlock = new byte[MAX_BLOCK_SIZE_BYTES];
+        journal.read(0, superBlock);
+        loadOrphans(superBlock);
+        staged = null; //block 0 may have been replayed too
+    }
+
+    private boolean isFreed(int blockNum) {
+        return (freedBitmap[blockNum / BITS_PER_WORD] & (1L << (blockNum % BITS_PER_WORD))) != 0;
+    }
+
+    //The bitmap starts right after the last inode block
+    private static int layoutBitmapStart(int inodes, int version) {
+        int inodesPerBlock = Inode.perBlock(version);
+        return 1 + (inodes + inodesPerBlock - 1) / inodesPerBlock;
+    }
+
+    private int bitmapBlockCount() {
+        return (totalBlocks + BITS_PER_BLOCK - 1) / BITS_PER_BLOCK;
+    }
+
+    //Reads the bitmap blocks into memory and recomputes the free count and search hint from them
+    private void loadBitmap() {
+        dataStart = bitmapStart + bitmapBlockCount() + journalBlocks;
+        bitmap = new long[bitmapBlockCount() * WORDS_PER_BLOCK];
+        bitmapDirty = new boolean[bitmapBlockCount()];
+        freedBitmap = new long[bitmap.length];
+        takenBitmap = new long[bitmap.length];
+        freedCount = 0;
+        byte[] data = new byte[MAX_BLOCK_SIZE_BYTES];
+        freeBlocks = 0;
+        searchHint = bitmap.length;
+        for (int b = 0; b < bitmapDirty.length; b++) {
+            journal.read(bitmapStart + b, data);
+            for (int i = 0; i < WORDS_PER_BLOCK; i++) {
+                int w = b * WORDS_PER_BLOCK + i;
+                long high = SysLib.bytes2int(data, i * 8) & 0xffffffffL;
+                long low = SysLib.bytes2int(data, i * 8 + BYTES_IN_AN_INT) & 0xffffffffL;
+                bitmap[w] = (high << 32) | low;
+                freeBlocks += Long.bitCount(~bitmap[w]);
+                if (bitmap[w] != -1L && w < searchHint) {
+                    searchHint = w;
+                }
+            }
+        }
+    }
+
+    //Reads the orphan list from the superblock block. A count that cannot be right, as on disks written before the
+    //list existed, reads as no orphans
+    private void loadOrphans(byte[] superBlock) {
+        orphans.clear();
+        int count = SysLib.bytes2int(superBlock, ORPHANS_OFFSET);
+        int offset = ORPHANS_OFFSET + BYTES_IN_AN_INT;
+        for (int i = 0; count > 0 && count <= MAX_ORPHANS && i < count; i++) {
+            int[] roots = new int[ORPHAN_ROOTS];
+            for (int r = 0; r < ORPHAN_ROOTS; r++) {
+                roots[r] = SysLib.bytes2int(superBlock, offset);
+                offset += BYTES_IN_AN_INT;
+            }
+            orphans.add(roots);
+        }
+        orphanImage = orphans.toArray(new int[orphans.size()][]);
+    }
+
+    //Serializes one bitmap block into data and returns it, blocks taken with takeFreed shown as free
+    private byte[] bitmapBlockBytes(int b, byte[] data) {
+        for (int i = 0; i < WORDS_PER_BLOCK; i++) {
+            long word = bitmap[b * WORDS_PER_BLOCK + i] & ~takenBitmap[b * WORDS_PER_BLOCK + i];
+            SysLib.int2bytes((int)(word >>> 32), data, i * 8);
+            SysLib.int2bytes((int)word, data, i * 8 + BYTES_IN_AN_INT);
+        }
+        return data;
+    }
+
+    private boolean testBit(int block) {
+        return (bitmap[block / BITS_PER_WORD] & (1L << (block % BITS_PER_WORD))) != 0;
+    }
+
+    private void setBit(int block) {
+        bitmap[block / BITS_PER_WORD] |= 1L << (block % BITS_PER_WORD);
+        bitmapDirty[block / BITS_PER_BLOCK] = true;
+    }
+
+    private void clearBit(int block) {
+        bitmap[block / BITS_PER_WORD] &= ~(1L << (block % BITS_PER_WORD));
+        bitmapDirty[block / BITS_PER_BLOCK] = true;
     }
 }
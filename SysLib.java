@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class SysLib {
@@ -145,8 +146,61 @@ public class SysLib {
         return Kernel.interrupt(1, 9, ftEntIndex, writeFrom);
     }
 
+    //Reads from the seek pointer straight into dst (heap or direct), up to dst.remaining() bytes
+    public static int read(int ftEntIndex, ByteBuffer dst) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.READ, ftEntIndex, dst);
+    }
+
+    //Scatter read, fills the buffers in order as if they were one
+    public static int read(int ftEntIndex, ByteBuffer[] dsts) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.READ, ftEntIndex, dsts);
+    }
+
+    //Writes everything remaining in src at the seek pointer
+    public static int write(int ftEntIndex, ByteBuffer src) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.WRITE, ftEntIndex, src);
+    }
+
+    //Gather write, writes the buffers in order as one contiguous write
+    public static int write(int ftEntIndex, ByteBuffer[] srcs) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.WRITE, ftEntIndex, srcs);
+    }
+
+    //Reads at offset without moving the seek pointer, safe to call from several threads sharing one fd
+    public static int pread(int ftEntIndex, ByteBuffer dst, int offset) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.PREAD, ftEntIndex, new Object[]{dst, offset});
+    }
+
+    //Writes at offset without moving the seek pointer, an offset past the end of the file leaves a hole. Fails on a
+    //file opened "r" or "a"
+    public static int pwrite(int ftEntIndex, ByteBuffer src, int offset) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.PWRITE, ftEntIndex, new Object[]{src, offset});
+    }
+
+    //Seeks to offset from the top of the file and reads into buffer in one system call. The seek pointer ends up
+    //past what was read, as after seek and read
+    public static int seekAndRead(int ftEntIndex, int offset, byte[] buffer) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.SEEKREAD, ftEntIndex, new Object[]{offset, buffer});
+    }
+
+    //Opens filename and returns a FileHandle on it, whose size, seek and tell do not enter the kernel. Null if the
+    //file cannot be opened
+    public static FileHandle openHandle(String filename, String mode) {
+        int fd = open(filename, mode);
+        if (fd < 0) {
+            return null;
+        }
+        FileHandle[] handle = new FileHandle[1];
+        if (Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.FHANDLE, fd, handle) != Kernel.OK) {
+            close(fd);
+            return null;
+        }
+        return handle[0];
+    }
+
     //Number 1 is interrupt software, 17 is seek, ftEntIndex is the index of the file entry to seek, offset is the
-    //place to start, whence indicates the algorithm for setting the seekptr
+    //place to start, whence indicates the algorithm for setting the seekptr: 0 from the top, 1 from the seekptr,
+    //2 from the end, FileSystem.SEEK_DATA and SEEK_HOLE to the next data or hole at or after offset
     public static int seek(int ftEntIndex, int offset, int whence) {
         int[] data = new int[]{offset, whence};
         return Kernel.interrupt(1, 17, ftEntIndex, data);
@@ -162,5 +216,25 @@ public class SysLib {
     public static int delete(String filename) {
         return Kernel.interrupt(1, 19, 0, filename);
     }
-}
 
+    //Creates an empty directory at path, its parent has to exist already
+    public static int mkdir(String path) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.MKDIR, 0, path);
+    }
+
+    //Removes the directory at path, which has to be empty
+    public static int rmdir(String path) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.RMDIR, 0, path);
+    }
+
+    //Appends the names in the directory at path to names and returns how many there were
+    public static int readdir(String path, List<String> names) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.READDIR, 0, new Object[]{path, names});
+    }
+
+    //Adds the kernel's counters to stats, by name, and returns how many there were: per system call its count,
+    //latency percentiles and blocks read and written, then cache and file system totals
+    public static int stats(Map<String, Long> stats) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.STATS, 0, stats);
+    }
+}